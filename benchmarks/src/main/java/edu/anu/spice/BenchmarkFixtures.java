@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Captions, tuples and scene graphs for the first images of 
+ * example_input_larger.json. Tuples are parsed with the default pipeline and 
+ * cached in the directory given by the spice.bench.cache property (by default
+ * in the temp directory), so only the first benchmark fork parses captions.
+ */
+public class BenchmarkFixtures {
+
+	public static final String INPUT = "/example_input_larger.json";
+
+	public SpiceParser parser;
+	public SpiceScorer.InputWindow window;
+	public List<SceneGraph> testGraphs;
+	public List<SceneGraph> refGraphs;
+
+	public static BenchmarkFixtures load(int numImages) throws IOException, ParseException {
+		BenchmarkFixtures fixtures = new BenchmarkFixtures();
+		fixtures.window = new SpiceScorer.InputWindow();
+		try (SpiceInputReader input = new SpiceInputReader(new BufferedReader(new InputStreamReader(
+				BenchmarkFixtures.class.getResourceAsStream(INPUT), StandardCharsets.UTF_8)))) {
+			JSONObject item;
+			while (fixtures.window.imageIds.size() < numImages && (item = input.next()) != null) {
+				fixtures.window.add(item);
+			}
+		}
+		fixtures.parser = new SpiceParser(cacheDir(), Runtime.getRuntime().availableProcessors(), true);
+		fixtures.window.captionTuples = fixtures.parser.loadTuples(fixtures.window.distinctCaptions());
+		fixtures.refGraphs = fixtures.parser.buildSceneGraphs(fixtures.window.refCaptions,
+				fixtures.window.refChunks, fixtures.window.captionTuples);
+		fixtures.testGraphs = fixtures.parser.buildSceneGraphs(fixtures.window.testCaptions,
+				fixtures.window.captionTuples);
+		return fixtures;
+	}
+
+	public int size() {
+		return this.window.imageIds.size();
+	}
+
+	/**
+	 * The reference captions of each image.
+	 */
+	public List<List<String>> refChunks() {
+		List<List<String>> chunks = new ArrayList<List<String>>();
+		int offset = 0;
+		for (int chunk : this.window.refChunks) {
+			chunks.add(this.window.refCaptions.subList(offset, offset + chunk));
+			offset += chunk;
+		}
+		return chunks;
+	}
+
+	public void close() {
+		this.parser.close();
+	}
+
+	protected static String cacheDir() {
+		File dir = new File(System.getProperty("spice.bench.cache",
+				new File(System.getProperty("java.io.tmpdir"), "spice-bench-cache").getPath()));
+		dir.mkdirs();
+		return dir.getPath();
+	}
+
+}
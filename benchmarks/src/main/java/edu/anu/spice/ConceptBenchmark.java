@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the concepts of every test tuple with those of each reference tuple 
+ * of the same image and arity, as matching does without the index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4G")
+public class ConceptBenchmark {
+
+	@Param("200")
+	public int images;
+
+	protected SemanticConcept[] left;
+	protected SemanticConcept[] right;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		BenchmarkFixtures fixtures = BenchmarkFixtures.load(this.images);
+		List<SemanticConcept> left = new ArrayList<SemanticConcept>();
+		List<SemanticConcept> right = new ArrayList<SemanticConcept>();
+		for (int i = 0; i < fixtures.size(); ++i) {
+			TupleSet test = new TupleSet(fixtures.testGraphs.get(i));
+			TupleSet ref = new TupleSet(fixtures.refGraphs.get(i));
+			for (SemanticTuple testTuple : test.tuples) {
+				for (SemanticTuple refTuple : ref.tuples) {
+					if (testTuple.size() == refTuple.size()) {
+						for (int j = 0; j < testTuple.size(); ++j) {
+							left.add(testTuple.get(j));
+							right.add(refTuple.get(j));
+						}
+					}
+				}
+			}
+		}
+		fixtures.close();
+		this.left = left.toArray(new SemanticConcept[left.size()]);
+		this.right = right.toArray(new SemanticConcept[right.size()]);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.left = null;
+		this.right = null;
+	}
+
+	@Benchmark
+	public int similarTo() {
+		int similar = 0;
+		for (int i = 0; i < this.left.length; ++i) {
+			if (this.left[i].similarTo(this.right[i])) {
+				similar++;
+			}
+		}
+		return similar;
+	}
+
+	@Benchmark
+	public double similarity() {
+		double total = 0;
+		for (int i = 0; i < this.left.length; ++i) {
+			float similarity = this.left[i].similarity(this.right[i]);
+			if (!Float.isNaN(similarity)) {
+				total += similarity;
+			}
+		}
+		return total;
+	}
+
+}
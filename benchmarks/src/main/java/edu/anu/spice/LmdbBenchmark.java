@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads and writes the tuples of every caption of the fixtures in a fresh cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4G")
+public class LmdbBenchmark {
+
+	@Param("200")
+	public int images;
+
+	@Param({ "false", "true" })
+	public boolean compress;
+
+	protected File dir;
+	protected LmdbTupleDB db;
+	protected List<String> captions;
+	protected Map<String, ArrayList<ArrayList<String>>> tuples;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		BenchmarkFixtures fixtures = BenchmarkFixtures.load(this.images);
+		this.captions = fixtures.window.distinctCaptions();
+		this.tuples = fixtures.window.captionTuples;
+		fixtures.close();
+		this.dir = Files.createTempDirectory("spice-bench-lmdb").toFile();
+		this.db = new LmdbTupleDB(this.dir.getPath(), this.compress);
+		this.db.putTransaction(this.tuples);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.db.close();
+		for (File file : this.dir.listFiles()) {
+			file.delete();
+		}
+		this.dir.delete();
+	}
+
+	@Benchmark
+	public Map<String, ArrayList<ArrayList<String>>> get() {
+		return this.db.getTransaction(this.captions);
+	}
+
+	@Benchmark
+	public void put() {
+		this.db.putTransaction(this.tuples);
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Extracts tuples from the dependency parses of test captions 
+ * (SpiceParser.parseAnnotation). The CoreNLP annotation itself is done once, 
+ * during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4G")
+public class ParserBenchmark {
+
+	@Param("200")
+	public int images;
+
+	protected SpiceParser parser;
+	protected List<Annotation> annotations;
+	protected List<CoreMap> sentences;
+	protected List<SemanticGraph> graphs;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		BenchmarkFixtures fixtures = BenchmarkFixtures.load(this.images);
+		this.parser = fixtures.parser;
+		this.parser.annotator.setInput(fixtures.window.testCaptions);
+		this.annotations = new ArrayList<Annotation>();
+		List<Annotation> batch;
+		while (!(batch = this.parser.annotator.parseNextBatch()).isEmpty()) {
+			this.annotations.addAll(batch);
+		}
+		// parseAnnotation modifies the dependency graphs, so a copy is parsed each time
+		this.sentences = new ArrayList<CoreMap>();
+		this.graphs = new ArrayList<SemanticGraph>();
+		for (Annotation ann : this.annotations) {
+			for (CoreMap sentence : ann.get(CoreAnnotations.SentencesAnnotation.class)) {
+				this.sentences.add(sentence);
+				this.graphs.add(sentence.get(SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation.class));
+			}
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void restoreGraphs() {
+		for (int i = 0; i < this.sentences.size(); ++i) {
+			this.sentences.get(i).set(SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation.class,
+					new SemanticGraph(this.graphs.get(i)));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.parser.close();
+	}
+
+	@Benchmark
+	public void parseAnnotation(Blackhole bh) {
+		for (Annotation ann : this.annotations) {
+			bh.consume(this.parser.parseAnnotation(ann));
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Builds the merged reference scene graph of each image from parsed tuples 
+ * (SceneGraph.addTuple), on a single thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4G")
+public class SceneGraphBenchmark {
+
+	@Param("200")
+	public int images;
+
+	protected BenchmarkFixtures fixtures;
+	protected List<List<String>> refChunks;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this.fixtures = BenchmarkFixtures.load(this.images);
+		this.refChunks = this.fixtures.refChunks();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.fixtures.close();
+	}
+
+	@Benchmark
+	public void buildReferenceGraphs(Blackhole bh) {
+		for (List<String> captions : this.refChunks) {
+			bh.consume(this.fixtures.parser.buildSceneGraph(captions, this.fixtures.window.captionTuples));
+		}
+	}
+
+}
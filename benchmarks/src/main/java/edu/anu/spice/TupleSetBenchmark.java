@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Matches the test tuples of each image against its reference tuples.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4G")
+public class TupleSetBenchmark {
+
+	@Param("200")
+	public int images;
+
+	protected TupleSet[] tests;
+	protected TupleSet[] refs;
+	protected TupleCategories categories;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		BenchmarkFixtures fixtures = BenchmarkFixtures.load(this.images);
+		this.tests = new TupleSet[fixtures.size()];
+		this.refs = new TupleSet[fixtures.size()];
+		for (int i = 0; i < fixtures.size(); ++i) {
+			this.tests[i] = new TupleSet(fixtures.testGraphs.get(i));
+			this.refs[i] = new TupleSet(fixtures.refGraphs.get(i));
+		}
+		fixtures.close();
+		this.categories = TupleCategories.defaults();
+	}
+
+	@Benchmark
+	public int matchSimilar() {
+		int matches = 0;
+		for (int i = 0; i < this.tests.length; ++i) {
+			matches += this.tests[i].match_similar(this.refs[i]).n;
+		}
+		return matches;
+	}
+
+	@Benchmark
+	public int matchExact() {
+		int matches = 0;
+		for (int i = 0; i < this.tests.length; ++i) {
+			matches += this.tests[i].match_exact(this.refs[i]).n;
+		}
+		return matches;
+	}
+
+	/**
+	 * Scoring as done with -subset.
+	 */
+	@Benchmark
+	public void evaluateCategories(Blackhole bh) {
+		for (int i = 0; i < this.tests.length; ++i) {
+			Map<String, Evaluation> score = this.categories.evaluate(this.tests[i], this.refs[i], true);
+			bh.consume(score);
+		}
+	}
+
+}
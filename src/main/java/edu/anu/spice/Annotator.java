@@ -22,67 +22,289 @@
 package edu.anu.spice;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
-import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 
 /**
- * Class to perform batched multi-threaded dependency parsing.
+ * Class to perform batched multi-threaded dependency parsing. The next batch is 
+ * annotated in the background while the caller processes the current one.
+ * 
+ * Captions can be parsed with one of several CoreNLP backends, and captions 
+ * longer than a given number of words can be routed to a faster backend.
  */
 public class Annotator {
 	
-	protected StanfordCoreNLP pipeline;
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+	
+	/**
+	 * CoreNLP pipelines that produce the collapsed CC-processed dependencies 
+	 * read by SpiceParser.
+	 */
+	public enum Backend {
+		/** The original pipeline, with the PCFG constituency parser */
+		PCFG("tokenize,ssplit,parse,lemma,ner"),
+		/** The PCFG parser without the unused NER annotator, giving the same tuples */
+		LEAN("tokenize,ssplit,parse,lemma"),
+		/** The shift-reduce constituency parser, which needs the english models jar */
+		SR("tokenize,ssplit,pos,lemma,parse"),
+		/** The neural network dependency parser */
+		NNDEP("tokenize,ssplit,pos,lemma,depparse");
+		
+		public static final String SR_MODEL = "edu/stanford/nlp/models/srparser/englishSR.ser.gz";
+		
+		protected final String annotators;
+		
+		Backend(String annotators) {
+			this.annotators = annotators;
+		}
+		
+		public Properties properties(int numThreads) {
+			Properties props = new Properties();
+			props.setProperty("annotators", this.annotators);
+			if (this == NNDEP) {
+				// As produced by the parse annotator, which ignores this property
+				props.setProperty("depparse.extradependencies", "NONE");
+			} else {
+				props.setProperty("depparse.extradependencies", "MAXIMAL");
+			}
+			if (this == SR) {
+				props.setProperty("parse.model", SR_MODEL);
+			}
+			props.setProperty("threads", Integer.toString(numThreads));
+			return props;
+		}
+		
+		public static Backend forName(String name) {
+			for (Backend backend : values()) {
+				if (backend.toString().equals(name)) {
+					return backend;
+				}
+			}
+			throw new IllegalArgumentException("Unknown parser \"" + name + "\", expected one of pcfg, lean, sr or nndep");
+		}
+		
+		@Override
+		public String toString() {
+			return this.name().toLowerCase();
+		}
+	}
+	
+	protected Map<Backend, StanfordCoreNLP> pipelines;
+	protected Backend backend;
+	protected Backend fastBackend;
+	protected int routeLength;
 	protected int numThreads;
 	protected int maxBatchSize;
 	protected List<List<String>> batches;
 	protected int batchNum;
+	protected ExecutorService prefetcher;
+	protected Future<List<Annotation>> nextBatch;
+	protected FutureTask<List<Annotation>> deferredBatch; // not yet started, when profiling
+	protected StageProfile profile;
 
 	public Annotator(int numThreads, int batchSize) {
-		this.pipeline = null;
+		this(numThreads, batchSize, Backend.PCFG, null, 0);
+	}
+	
+	/**
+	 * Parses captions of more than routeLength words with fastBackend, if it is 
+	 * not null, and all other captions with backend.
+	 */
+	public Annotator(int numThreads, int batchSize, Backend backend, Backend fastBackend, int routeLength) {
+		this.pipelines = new EnumMap<Backend, StanfordCoreNLP>(Backend.class);
+		this.backend = backend;
+		this.fastBackend = fastBackend == backend ? null : fastBackend;
+		this.routeLength = routeLength;
 		this.numThreads = numThreads;
 		this.batches = null;
 		this.batchNum = 0;
 		this.maxBatchSize = batchSize;
+		this.prefetcher = null;
+		this.nextBatch = null;
+		this.deferredBatch = null;
+		this.profile = StageProfile.DISABLED;
+	}
+	
+	public Annotator(SpiceArguments args) {
+		this(args.numThreads, DEFAULT_BATCH_SIZE, Backend.forName(args.parser), 
+				args.fastParser == null ? null : Backend.forName(args.fastParser), args.routeLength);
+	}
+	
+	/**
+	 * Describes the backends in use, e.g. "pcfg" or "pcfg+sr>15".
+	 */
+	public String description() {
+		if (this.fastBackend == null) {
+			return this.backend.toString();
+		}
+		return this.backend + "+" + this.fastBackend + ">" + this.routeLength;
+	}
+	
+	/**
+	 * Returns true if captions are parsed exactly as by the original pipeline.
+	 */
+	public boolean isDefault() {
+		return this.fastBackend == null && (this.backend == Backend.PCFG || this.backend == Backend.LEAN);
+	}
+	
+	/**
+	 * Records model loading and annotation in the given profile. While the 
+	 * profile is enabled batches are annotated on demand rather than in the 
+	 * background, so that each stage is measured in isolation.
+	 */
+	public void setProfile(StageProfile profile) {
+		this.profile = profile;
+	}
+	
+	protected Backend route(String caption) {
+		if (this.fastBackend != null && countWords(caption) > this.routeLength) {
+			return this.fastBackend;
+		}
+		return this.backend;
+	}
+	
+	protected static int countWords(String caption) {
+		int words = 0;
+		boolean inWord = false;
+		for (int i = 0; i < caption.length(); ++i) {
+			boolean space = Character.isWhitespace(caption.charAt(i));
+			if (!space && !inWord) {
+				words++;
+			}
+			inWord = !space;
+		}
+		return words;
 	}
 	
-	private void initPipeline() {
-		System.err.println("Initiating Stanford parsing pipeline");
-		Properties props = new Properties();
-		props.setProperty("annotators", "tokenize,ssplit,parse,lemma,ner");
-		props.setProperty("depparse.extradependencies", "MAXIMAL");
-		props.setProperty("threads", Integer.toString(this.numThreads));
-		this.pipeline = new StanfordCoreNLP(props);
+	private StanfordCoreNLP pipeline(Backend backend) {
+		StanfordCoreNLP pipeline = this.pipelines.get(backend);
+		if (pipeline == null) {
+			System.err.println("Initiating Stanford parsing pipeline (" + backend + ")");
+			try (StageProfile.Timer timer = this.profile.start(StageProfile.Stage.MODEL_LOAD)) {
+				pipeline = new StanfordCoreNLP(backend.properties(this.numThreads));
+			} catch (RuntimeException e) {
+				if (backend == Backend.SR) {
+					throw new RuntimeException("Could not load " + Backend.SR_MODEL 
+							+ ", build with \"mvn -Psr-parser\" to include the shift-reduce parser models", e);
+				}
+				throw e;
+			}
+			this.pipelines.put(backend, pipeline);
+		}
+		return pipeline;
 	}
 	
 	public void setInput(List<String> captions){
+		// Discard any batch still being prefetched from the previous input
+		if (this.deferredBatch != null){
+			this.deferredBatch = null;
+			this.nextBatch = null;
+		}
+		this.waitForBatch();
 		this.batches = Lists.partition(captions, this.maxBatchSize);
 		this.batchNum = 0;
+		this.prefetchBatch();
 	}
 	
 	List<Annotation> parseNextBatch(){
-		//Stopwatch timer = Stopwatch.createStarted();		
-		List<Annotation> result = new ArrayList<Annotation>();
+		long start = System.nanoTime();
+		List<Annotation> result = this.waitForBatch();
+		SpiceMetrics.get().recordMicros(SpiceMetrics.Histogram.ANNOTATION_WAIT_MICROS, start);
+		// Start annotating the following batch while this one is consumed
+		this.prefetchBatch();
+		return result;
+	}
+
+	/**
+	 * Stops the background annotation thread.
+	 */
+	public void close(){
+		if (this.prefetcher != null){
+			this.prefetcher.shutdownNow();
+			this.prefetcher = null;
+		}
+	}
+
+	private void prefetchBatch(){
+		this.nextBatch = null;
 		if (this.batches != null && this.batchNum < this.batches.size()){
-			for (String caption : this.batches.get(batchNum)) {
-				result.add(new Annotation(caption));
-			}
-			if (!result.isEmpty()){
-				if (this.pipeline == null) {
-					initPipeline();
-				}
-				this.pipeline.annotate(result);
-			}
+			final List<String> batch = this.batches.get(batchNum);
 			batchNum++;
 			if (batchNum >= this.batches.size()){
 				this.batches = null;
 			}
-		}	
-		//System.out.println("parseCaptions took: " + timer.stop());
+			if (this.profile.isEnabled()){
+				this.deferredBatch = new FutureTask<List<Annotation>>(() -> this.annotate(batch));
+				this.nextBatch = this.deferredBatch;
+				return;
+			}
+			if (this.prefetcher == null){
+				this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+						.setDaemon(true).setNameFormat("spice-annotator").build());
+			}
+			this.nextBatch = this.prefetcher.submit(() -> this.annotate(batch));
+		}
+	}
+
+	private List<Annotation> waitForBatch(){
+		if (this.nextBatch == null){
+			return new ArrayList<Annotation>();
+		}
+		if (this.deferredBatch != null){
+			this.deferredBatch.run();
+			this.deferredBatch = null;
+		}
+		try {
+			return this.nextBatch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while parsing captions", e);
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		} finally {
+			this.nextBatch = null;
+		}
+	}
+	
+	private List<Annotation> annotate(List<String> batch){
+		List<Annotation> result = new ArrayList<Annotation>();
+		Map<Backend, List<Annotation>> routed = new EnumMap<Backend, List<Annotation>>(Backend.class);
+		for (String caption : batch) {
+			Annotation ann = new Annotation(caption);
+			result.add(ann);
+			routed.computeIfAbsent(this.route(caption), b -> new ArrayList<Annotation>()).add(ann);
+		}
+		try (StageProfile.Timer timer = this.profile.start(StageProfile.Stage.ANNOTATION)) {
+			timer.count(batch.size());
+			for (Map.Entry<Backend, List<Annotation>> group : routed.entrySet()) {
+				StanfordCoreNLP pipeline = this.pipeline(group.getKey());
+				long start = System.nanoTime();
+				pipeline.annotate(group.getValue());
+				recordBatch(start, group.getValue().size());
+			}
+		}
 		return result;
 	}
+	
+	private static void recordBatch(long startNanos, int captions) {
+		long micros = (System.nanoTime() - startNanos) / 1000;
+		SpiceMetrics metrics = SpiceMetrics.get();
+		metrics.record(SpiceMetrics.Histogram.ANNOTATION_BATCH_MICROS, micros);
+		metrics.record(SpiceMetrics.Histogram.ANNOTATION_MICROS_PER_CAPTION, micros / captions);
+		metrics.add(SpiceMetrics.Counter.CAPTIONS_ANNOTATED, captions);
+	}
  }
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Scoring progress saved to a directory, so that an evaluation interrupted
+ * (e.g. by running out of memory) can be resumed with -resume without scoring
+ * finished images again.
+ *
+ * The per-image results of each window are written to their own file, in the
+ * format of the output file, and state.json records how many windows and input
+ * images they hold, and the options they were scored with. Each file is written to a temporary file and then renamed,
+ * so a checkpoint is never seen half-written. When the run completes the
+ * output file is assembled from the windows and the checkpoint is removed.
+ */
+public class Checkpoint {
+
+	protected static final String STATE_FILE = "state.json";
+
+	protected final File dir;
+	protected final String inputPath;
+	protected final Map<String, String> options;
+	protected int windows;
+	protected int images;
+
+	protected Checkpoint(File dir, String inputPath, Map<String, String> options) {
+		this.dir = dir;
+		this.inputPath = inputPath;
+		this.options = options;
+		this.windows = 0;
+		this.images = 0;
+	}
+
+	/**
+	 * The options that change the scores or the output file, keyed by name.
+	 */
+	public static Map<String, String> options(SpiceArguments args, String parser, TupleCategories categories) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		options.put("parser", parser);
+		options.put("synsets", args.synsets.toString());
+		options.put("categories", String.join(",", categories.names()));
+		if (args.subsetConfig != null) {
+			options.put("subsetConfig", args.subsetConfig);
+		}
+		if (args.bundle != null) {
+			options.put("bundle", args.bundle);
+		}
+		options.put("detailed", args.detailed.toString());
+		options.put("indent", Integer.toString(args.indent));
+		return options;
+	}
+
+	/**
+	 * Opens a checkpoint of scoring the given input with the given options.
+	 * Existing progress is only continued if resume is true and it was scored
+	 * with the same options, and is never discarded.
+	 */
+	public static Checkpoint open(String dirPath, String inputPath, Map<String, String> options, boolean resume)
+			throws IOException {
+		File dir = new File(dirPath);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create checkpoint directory " + dirPath);
+		}
+		Checkpoint checkpoint = new Checkpoint(dir, inputPath, options);
+		File state = new File(dir, STATE_FILE);
+		if (!state.exists()) {
+			if (resume) {
+				System.err.println("No checkpoint in " + dirPath + ", starting from the beginning");
+			}
+			return checkpoint;
+		}
+		if (!resume) {
+			throw new IOException("Checkpoint directory " + dirPath
+					+ " holds an unfinished evaluation, continue it with -resume or remove it");
+		}
+		try (Reader reader = Files.newBufferedReader(state.toPath(), StandardCharsets.UTF_8)) {
+			JSONObject saved = (JSONObject) new JSONParser().parse(reader);
+			if (!inputPath.equals(saved.get("input"))) {
+				throw new IOException("Checkpoint in " + dirPath + " is of " + saved.get("input") + ", not " + inputPath);
+			}
+			// Windows scored with different options cannot be combined
+			JSONObject savedOptions = (JSONObject) saved.get("options");
+			Map<String, String> previous = new HashMap<String, String>();
+			if (savedOptions != null) {
+				for (Object name : savedOptions.keySet()) {
+					previous.put((String) name, (String) savedOptions.get(name));
+				}
+			}
+			if (!previous.equals(options)) {
+				for (String name : options.keySet()) {
+					previous.putIfAbsent(name, null);
+				}
+				for (Map.Entry<String, String> option : previous.entrySet()) {
+					if (!Objects.equals(option.getValue(), options.get(option.getKey()))) {
+						throw new IOException(String.format("Checkpoint in %s was saved with %s %s, not %s", dirPath,
+								option.getKey(), option.getValue(), options.get(option.getKey())));
+					}
+				}
+			}
+			checkpoint.windows = ((Number) saved.get("windows")).intValue();
+			checkpoint.images = ((Number) saved.get("images")).intValue();
+		} catch (ParseException | ClassCastException | NullPointerException e) {
+			throw new IOException("Could not read checkpoint " + state.getPath() + ": " + e.toString());
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * The number of input images already scored.
+	 */
+	public int images() {
+		return this.images;
+	}
+
+	protected File windowFile(int window) {
+		return new File(this.dir, String.format("results-%06d.json", window));
+	}
+
+	/**
+	 * Adds the scores of every image already scored to the totals of stats.
+	 */
+	public void restore(SpiceStats stats) throws IOException {
+		for (int window = 0; window < this.windows; ++window) {
+			try (SpiceInputReader results = new SpiceInputReader(this.windowFile(window).getPath())) {
+				JSONObject item;
+				while ((item = results.next()) != null) {
+					JSONObject scores = (JSONObject) item.get("scores");
+					Map<String, Evaluation> score = new HashMap<String, Evaluation>();
+					for (Object name : scores.keySet()) {
+						score.put((String) name, Evaluation.fromJSON((JSONObject) scores.get(name)));
+					}
+					stats.accumulate(score);
+				}
+			} catch (ParseException | ClassCastException e) {
+				throw new IOException("Could not read checkpoint " + this.windowFile(window).getPath() + ": " + e.toString());
+			}
+		}
+		if (stats.numImages() != this.images) {
+			throw new IOException("Checkpoint in " + this.dir.getPath() + " holds " + stats.numImages()
+					+ " scored images, expected " + this.images);
+		}
+		System.err.println(String.format("Resuming after %d scored images", this.images));
+	}
+
+	/**
+	 * Saves the per-image results held by stats as the next window, then clears them.
+	 */
+	public void save(SpiceStats stats, int indent) throws IOException {
+		File file = this.windowFile(this.windows);
+		File temp = new File(file.getPath() + ".tmp");
+		JsonStreamWriter writer = new JsonStreamWriter(new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(temp), StandardCharsets.UTF_8), 1 << 16), indent);
+		stats.writeJSON(writer);
+		writer.close();
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		this.windows += 1;
+		this.images = stats.numImages();
+		stats.clearResults();
+		this.saveState();
+	}
+
+	protected void saveState() throws IOException {
+		File state = new File(this.dir, STATE_FILE);
+		File temp = new File(state.getPath() + ".tmp");
+		try (JsonStreamWriter writer = new JsonStreamWriter(Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8), 2)) {
+			writer.beginObject();
+			writer.name("input").value(this.inputPath);
+			writer.name("windows").value(this.windows);
+			writer.name("images").value(this.images);
+			writer.name("options").beginObject();
+			for (Map.Entry<String, String> option : this.options.entrySet()) {
+				writer.name(option.getKey()).value(option.getValue());
+			}
+			writer.endObject();
+			writer.endObject();
+		}
+		Files.move(temp.toPath(), state.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Writes the results of every window as a single json array, exactly as
+	 * SpiceStats.writeJSON would have written them had they all been kept.
+	 */
+	public void writeResults(Writer out, int indent) throws IOException {
+		out.write('[');
+		for (int window = 0; window < this.windows; ++window) {
+			String results = new String(Files.readAllBytes(this.windowFile(window).toPath()), StandardCharsets.UTF_8);
+			// The elements of the array, without its brackets or the line break before the closing one
+			int start = results.indexOf('[') + 1;
+			int end = results.lastIndexOf(']');
+			while (end > start && Character.isWhitespace(results.charAt(end - 1))) {
+				end--;
+			}
+			if (window > 0) {
+				out.write(',');
+			}
+			out.write(results, start, end - start);
+		}
+		if (this.images > 0 && indent > 0) {
+			out.write('\n');
+		}
+		out.write(']');
+	}
+
+	/**
+	 * Removes the checkpoint once the evaluation is complete.
+	 */
+	public void delete() {
+		for (int window = 0; window < this.windows; ++window) {
+			this.windowFile(window).delete();
+		}
+		new File(this.dir, STATE_FILE).delete();
+	}
+
+}
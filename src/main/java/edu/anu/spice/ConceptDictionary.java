@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Process-wide dictionary of the concepts used in scene graphs. Lemmas are
+ * mapped to dense integer ids, and each distinct combination of lemmas and
+ * synsets is held by a single immutable Entry that every SemanticConcept with
+ * that content shares. Entries that are no longer referenced are reclaimed.
+ */
+public class ConceptDictionary {
+
+	protected static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	protected static final AtomicInteger nextId = new AtomicInteger();
+	protected static final Interner<Key> keys = Interners.newWeakInterner();
+	protected static final Interner<Entry> entries = Interners.newWeakInterner();
+
+	/**
+	 * The content of a concept: its lemma ids and synsets, both sorted. Keys are
+	 * interned, so two concepts are equal iff they share the same Key instance.
+	 */
+	public static final class Key {
+		public final int[] ids;
+		public final int[] synsets;
+		private final int hash;
+
+		private Key(int[] ids, int[] synsets) {
+			this.ids = ids;
+			this.synsets = synsets;
+			this.hash = 31 * Arrays.hashCode(ids) + Arrays.hashCode(synsets);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return this.hash == other.hash && Arrays.equals(this.ids, other.ids)
+					&& Arrays.equals(this.synsets, other.synsets);
+		}
+	}
+
+	/**
+	 * An immutable concept. Besides its Key this records the order in which
+	 * lemmas and synsets are displayed and compared, which follows the
+	 * iteration order of the HashSets that concepts were originally built from.
+	 */
+	public static final class Entry {
+		public final Key key;
+		public final String[] lemmas;
+		public final int[] synsets;
+		public final String text;
+
+		private Entry(Key key, String[] lemmas, int[] synsets) {
+			this.key = key;
+			this.lemmas = lemmas;
+			this.synsets = synsets;
+			this.text = String.join("/", lemmas);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.key.hashCode() * 31 + this.text.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry)) {
+				return false;
+			}
+			Entry other = (Entry) o;
+			return this.key == other.key && Arrays.equals(this.lemmas, other.lemmas)
+					&& Arrays.equals(this.synsets, other.synsets);
+		}
+	}
+
+	/**
+	 * Returns the id of a lemma, assigning the next free id to new lemmas.
+	 */
+	public static int id(String lemma) {
+		Integer id = ids.get(lemma);
+		if (id == null) {
+			id = ids.computeIfAbsent(lemma, l -> nextId.getAndIncrement());
+		}
+		return id;
+	}
+
+	public static int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Returns the shared entry for the given lemmas and synsets, each in display order and without duplicates.
+	 */
+	public static Entry entry(Collection<String> lemmas, Collection<Integer> synsets) {
+		String[] lemmaOrder = lemmas.toArray(new String[lemmas.size()]);
+		int[] lemmaIds = new int[lemmaOrder.length];
+		for (int i = 0; i < lemmaOrder.length; ++i) {
+			lemmaIds[i] = id(lemmaOrder[i]);
+		}
+		Arrays.sort(lemmaIds);
+		int[] synsetOrder = new int[synsets.size()];
+		int i = 0;
+		for (Integer synset : synsets) {
+			synsetOrder[i++] = synset;
+		}
+		int[] sortedSynsets = synsetOrder.clone();
+		Arrays.sort(sortedSynsets);
+		Key key = keys.intern(new Key(lemmaIds, sortedSynsets));
+		return entries.intern(new Entry(key, lemmaOrder, synsetOrder));
+	}
+
+	/**
+	 * Returns true if every element of the sorted array b is also in the sorted array a.
+	 */
+	public static boolean containsAll(int[] a, int[] b) {
+		int i = 0;
+		for (int value : b) {
+			while (i < a.length && a[i] < value) {
+				++i;
+			}
+			if (i == a.length || a[i] != value) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if two sorted arrays share an element.
+	 */
+	public static boolean intersects(int[] a, int[] b) {
+		if (a.length == 0 || b.length == 0 || a[a.length - 1] < b[0] || b[b.length - 1] < a[0]) {
+			return false;
+		}
+		int i = 0, j = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				++i;
+			} else if (a[i] > b[j]) {
+				++j;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of elements shared by two sorted arrays.
+	 */
+	public static int intersectionSize(int[] a, int[] b) {
+		if (a.length == 0 || b.length == 0 || a[a.length - 1] < b[0] || b[b.length - 1] < a[0]) {
+			return 0;
+		}
+		int i = 0, j = 0, count = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				++i;
+			} else if (a[i] > b[j]) {
+				++j;
+			} else {
+				++count;
+				++i;
+				++j;
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import edu.stanford.nlp.ling.IndexedWord;
+import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.semgraph.SemanticGraphEdge;
+import edu.stanford.nlp.trees.GrammaticalRelation;
+
+/**
+ * The relation types and part-of-speech tags present in a dependency graph,
+ * collected in one pass over the graph. Used to skip the Semgrex rules of
+ * SpiceParser whose required relations or tags cannot be matched.
+ */
+public class DependencyIndex {
+
+	protected Set<String> relations;
+	protected boolean hasNmod;
+	protected boolean hasNoun; // tag:/NNP?S?/
+	protected boolean hasPluralNoun; // tag:/NNP?S/
+	protected boolean hasVerb; // tag:/V.*/
+	protected boolean hasAdjective; // tag:/J.*/
+
+	public DependencyIndex(SemanticGraph sg) {
+		this.relations = new HashSet<String>();
+		for (SemanticGraphEdge edge : sg.edgeIterable()) {
+			String reln = edge.getRelation().toString();
+			this.relations.add(reln);
+			this.hasNmod |= reln.startsWith("nmod:");
+		}
+		for (IndexedWord word : sg.vertexSet()) {
+			String tag = word.tag();
+			if (tag == null) {
+				continue;
+			}
+			if (tag.equals("NN") || tag.equals("NNP")) {
+				this.hasNoun = true;
+			} else if (tag.equals("NNS") || tag.equals("NNPS")) {
+				this.hasNoun = true;
+				this.hasPluralNoun = true;
+			} else if (tag.startsWith("V")) {
+				this.hasVerb = true;
+			} else if (tag.startsWith("J")) {
+				this.hasAdjective = true;
+			}
+		}
+	}
+
+	public boolean hasRelation(String reln) {
+		return this.relations.contains(reln);
+	}
+
+	public boolean hasRelation(GrammaticalRelation reln) {
+		return this.relations.contains(reln.toString());
+	}
+
+	/**
+	 * Any relation matching /(iobj|dobj|nmod:.*)/
+	 */
+	public boolean hasObjectRelation() {
+		return this.hasNmod || this.hasRelation("iobj") || this.hasRelation("dobj");
+	}
+
+	public boolean hasNmod() {
+		return this.hasNmod;
+	}
+
+	public boolean hasNoun() {
+		return this.hasNoun;
+	}
+
+	public boolean hasPluralNoun() {
+		return this.hasPluralNoun;
+	}
+
+	public boolean hasVerb() {
+		return this.hasVerb;
+	}
+
+	public boolean hasAdjective() {
+		return this.hasAdjective;
+	}
+
+}
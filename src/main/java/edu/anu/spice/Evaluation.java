@@ -21,6 +21,8 @@
 
 package edu.anu.spice;
 
+import java.io.IOException;
+
 import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
@@ -66,6 +68,18 @@ public class Evaluation implements JSONAware {
 		}
 	}
 
+	/**
+	 * Evaluation of tp matches between testSize candidate and refSize reference tuples.
+	 */
+	public Evaluation(int tp, int testSize, int refSize, boolean allowNan) {
+		this();
+		this.numImages = 1;
+		this.tp = tp;
+		this.fp = testSize - tp;
+		this.fn = refSize - tp;
+		this.calcFScore(allowNan);
+	}
+
 	public Evaluation(TupleSet candidates, TupleSet references, boolean allowNan, boolean useSynsets) {
 		this();
 		this.numImages = 1;
@@ -81,6 +95,25 @@ public class Evaluation implements JSONAware {
 		this.calcFScore(allowNan);
 	}
 
+	/**
+	 * Reads an Evaluation written by writeJSON, in which NaN scores are null.
+	 */
+	public static Evaluation fromJSON(JSONObject json) {
+		Evaluation result = new Evaluation();
+		result.tp = ((Number) json.get("tp")).intValue();
+		result.fp = ((Number) json.get("fp")).intValue();
+		result.fn = ((Number) json.get("fn")).intValue();
+		result.f = doubleValue(json.get("f"));
+		result.pr = doubleValue(json.get("pr"));
+		result.re = doubleValue(json.get("re"));
+		result.numImages = ((Number) json.get("numImages")).intValue();
+		return result;
+	}
+
+	private static double doubleValue(Object value) {
+		return value == null ? Double.NaN : ((Number) value).doubleValue();
+	}
+
 	public String toString(String delim) {
 		StringBuilder sb = new StringBuilder();
 		sb.append(f + delim);
@@ -107,4 +140,16 @@ public class Evaluation implements JSONAware {
 		return JSONValue.toJSONString(jsonObj);
 	}
 
+	public void writeJSON(JsonStreamWriter writer) throws IOException {
+		writer.beginObject();
+		writer.name("tp").value(tp);
+		writer.name("fp").value(fp);
+		writer.name("fn").value(fn);
+		writer.name("f").value(f);
+		writer.name("pr").value(pr);
+		writer.name("re").value(re);
+		writer.name("numImages").value(numImages);
+		writer.endObject();
+	}
+
 }
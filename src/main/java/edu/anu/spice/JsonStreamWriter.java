@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Writes json directly to an output stream, so that large results never need
+ * to be held in memory as a single string. With a non-zero indent the output
+ * is laid out the same way as JSON.stringify(value, null, indent).
+ */
+public class JsonStreamWriter implements Closeable, Flushable {
+
+	protected Writer out;
+	protected int indent;
+	protected Deque<int[]> counts; // number of values written in each open array / object
+	protected boolean afterName;
+
+	public JsonStreamWriter(Writer out, int indent) {
+		this.out = out;
+		this.indent = indent;
+		this.counts = new ArrayDeque<int[]>();
+		this.afterName = false;
+	}
+
+	public JsonStreamWriter beginArray() throws IOException {
+		this.beforeValue();
+		this.out.write('[');
+		this.counts.push(new int[1]);
+		return this;
+	}
+
+	public JsonStreamWriter endArray() throws IOException {
+		return this.end(']');
+	}
+
+	public JsonStreamWriter beginObject() throws IOException {
+		this.beforeValue();
+		this.out.write('{');
+		this.counts.push(new int[1]);
+		return this;
+	}
+
+	public JsonStreamWriter endObject() throws IOException {
+		return this.end('}');
+	}
+
+	public JsonStreamWriter name(String name) throws IOException {
+		this.beforeValue();
+		this.writeString(name);
+		this.out.write(this.indent > 0 ? ": " : ":");
+		this.afterName = true;
+		return this;
+	}
+
+	public JsonStreamWriter value(String value) throws IOException {
+		if (value == null) {
+			return this.nullValue();
+		}
+		this.beforeValue();
+		this.writeString(value);
+		return this;
+	}
+
+	public JsonStreamWriter value(boolean value) throws IOException {
+		this.beforeValue();
+		this.out.write(value ? "true" : "false");
+		return this;
+	}
+
+	public JsonStreamWriter value(long value) throws IOException {
+		this.beforeValue();
+		this.out.write(Long.toString(value));
+		return this;
+	}
+
+	public JsonStreamWriter value(double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return this.nullValue();
+		}
+		this.beforeValue();
+		this.out.write(formatNumber(value));
+		return this;
+	}
+
+	/**
+	 * Writes a json-simple style value, e.g. an image_id read from the input.
+	 */
+	public JsonStreamWriter value(Object value) throws IOException {
+		if (value == null) {
+			return this.nullValue();
+		} else if (value instanceof String) {
+			return this.value((String) value);
+		} else if (value instanceof Boolean) {
+			return this.value(((Boolean) value).booleanValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			return this.value(((Number) value).doubleValue());
+		} else if (value instanceof Number) {
+			return this.value(((Number) value).longValue());
+		}
+		return this.value(value.toString());
+	}
+
+	public JsonStreamWriter nullValue() throws IOException {
+		this.beforeValue();
+		this.out.write("null");
+		return this;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.out.close();
+	}
+
+	private JsonStreamWriter end(char bracket) throws IOException {
+		int[] count = this.counts.pop();
+		if (count[0] > 0) {
+			this.newline();
+		}
+		this.out.write(bracket);
+		return this;
+	}
+
+	private void beforeValue() throws IOException {
+		if (this.afterName) {
+			this.afterName = false;
+			return;
+		}
+		int[] count = this.counts.peek();
+		if (count != null) {
+			if (count[0] > 0) {
+				this.out.write(',');
+			}
+			count[0]++;
+			this.newline();
+		}
+	}
+
+	private void newline() throws IOException {
+		if (this.indent > 0) {
+			this.out.write('\n');
+			for (int i = 0; i < this.counts.size() * this.indent; ++i) {
+				this.out.write(' ');
+			}
+		}
+	}
+
+	private void writeString(String value) throws IOException {
+		this.out.write('"');
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				this.out.write("\\\"");
+				break;
+			case '\\':
+				this.out.write("\\\\");
+				break;
+			case '\b':
+				this.out.write("\\b");
+				break;
+			case '\f':
+				this.out.write("\\f");
+				break;
+			case '\n':
+				this.out.write("\\n");
+				break;
+			case '\r':
+				this.out.write("\\r");
+				break;
+			case '\t':
+				this.out.write("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					this.out.write(String.format("\\u%04x", (int) c));
+				} else {
+					this.out.write(c);
+				}
+			}
+		}
+		this.out.write('"');
+	}
+
+	/**
+	 * Formats numbers the way javascript does, e.g. 1 rather than 1.0
+	 */
+	protected static String formatNumber(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e18) {
+			return Long.toString((long) value);
+		}
+		String result = Double.toString(value);
+		double magnitude = Math.abs(value);
+		if (magnitude >= 1e-6 && magnitude < 1e21) {
+			return result.contains("E") ? new BigDecimal(result).stripTrailingZeros().toPlainString() : result;
+		}
+		int exponent = result.indexOf('E');
+		String mantissa = result.substring(0, exponent);
+		if (mantissa.endsWith(".0")) {
+			mantissa = mantissa.substring(0, mantissa.length() - 2);
+		}
+		String power = result.substring(exponent + 1);
+		return mantissa + "e" + (power.startsWith("-") ? power : "+" + power);
+	}
+
+}
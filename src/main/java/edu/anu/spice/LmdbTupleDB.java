@@ -21,86 +21,230 @@
 
 package edu.anu.spice;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.fusesource.lmdbjni.Constants;
 import org.fusesource.lmdbjni.Database;
+import org.fusesource.lmdbjni.DirectBuffer;
 import org.fusesource.lmdbjni.Env;
 import org.fusesource.lmdbjni.LMDBException;
 import org.fusesource.lmdbjni.Transaction;
-import org.nustaq.serialization.FSTConfiguration;
 
 import com.google.common.base.MoreObjects;
-import com.google.common.base.Stopwatch;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.UnsignedBytes;
 
+/**
+ * Cache of caption tuples in an LMDB database. The environment is opened once
+ * and shared by all threads until close() is called; every lookup or batch
+ * of lookups runs in its own read transaction. close() waits for running
+ * transactions, and any started afterwards fail with IllegalStateException.
+ * 
+ * Keys are fixed-width SHA-256 digests of the caption text, so captions of any
+ * length can be cached. The caption itself is stored with its tuples and checked
+ * on lookup to guard against collisions.
+ * 
+ * Tuples are stored in the "tuples" database using TupleCodec, as ids into a
+ * lemma dictionary kept in the "lemmas" database (4-byte big-endian id to UTF-8
+ * lemma). The dictionary only ever grows, and new lemmas are written in the same
+ * transaction as the tuples that use them. Tuples produced by a parser other
+ * than the default one are kept in a separate database, named after it.
+ */
 public class LmdbTupleDB {
 
-	protected static FSTConfiguration conf = FSTConfiguration.createDefaultConfiguration();
+	protected static final int KEY_LENGTH = 32;
 	protected String dbPath;
+	protected Env env;
+	protected Database tuples;
+	protected Database lemmaDb;
+	protected TupleCodec codec;
+	protected TupleCodec.LemmaTable lemmas;
+	// Held for reading by transactions and for writing by close()
+	protected final ReadWriteLock lock;
 
 	public LmdbTupleDB(String dbPath) {
-		// register most frequently used classes on conf
-		conf.registerClass(String.class,ArrayList.class);
+		this(dbPath, false);
+	}
+
+	public LmdbTupleDB(String dbPath, boolean compress) {
+		this(dbPath, compress, "tuples");
+	}
+
+	public LmdbTupleDB(String dbPath, boolean compress, String tuplesName) {
 		this.dbPath = dbPath;
+		this.lock = new ReentrantReadWriteLock();
+		this.env = new Env();
+		this.env.setMapSize(10000L*2560*4096); // 100GB
+		this.env.setMaxDbs(16);
+		// Read transactions are not tied to threads, so each reader can use its own
+		this.env.open(this.dbPath, Constants.NOTLS);
+		this.tuples = this.env.openDatabase(tuplesName);
+		this.lemmaDb = this.env.openDatabase("lemmas");
+		this.codec = new TupleCodec(compress);
+		this.lemmas = new TupleCodec.LemmaTable();
+		try (Transaction tx = this.env.createReadTransaction()) {
+			this.loadLemmas(tx);
+		}
 	}
 
-	@SuppressWarnings("unchecked")
-	public ArrayList<ArrayList<String>> get(String caption) {
-		try (Env env = new Env()) {
-			env.open(this.dbPath);
-			try (Database db = env.openDatabase()) {
-				byte[] val = db.get(conf.asByteArray(caption));
-				if (val == null) {
-					return null;
-				} else {
-					return (ArrayList<ArrayList<String>>)conf.asObject(val);
-				}
+	public void close() {
+		this.lock.writeLock().lock();
+		try {
+			if (this.env != null) {
+				this.tuples.close();
+				this.lemmaDb.close();
+				this.env.close();
+				this.tuples = null;
+				this.lemmaDb = null;
+				this.env = null;
 			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Takes the read lock for a transaction, which must be released with endTransaction.
+	 */
+	protected void beginTransaction() {
+		this.lock.readLock().lock();
+		if (this.env == null) {
+			this.lock.readLock().unlock();
+			throw new IllegalStateException("Tuple cache " + this.dbPath + " has been closed");
 		}
 	}
 
+	protected void endTransaction() {
+		this.lock.readLock().unlock();
+	}
+
+	protected static byte[] key(byte[] caption) {
+		return Hashing.sha256().hashBytes(caption).asBytes();
+	}
+
+	/**
+	 * Reads any lemmas added to the dictionary (e.g. by another process) since it was last loaded.
+	 */
+	protected void loadLemmas(Transaction tx) {
+		synchronized (this.lemmas) {
+			byte[] lemma;
+			while ((lemma = this.lemmaDb.get(tx, Ints.toByteArray(this.lemmas.size()))) != null) {
+				this.lemmas.add(this.lemmas.size(), new String(lemma, StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	/**
+	 * Decodes a value in place. Returns null if it belongs to a different caption or cannot be read.
+	 */
+	protected ArrayList<ArrayList<String>> decode(Transaction tx, DirectBuffer value, byte[] caption) {
+		try {
+			return TupleCodec.decode(value, caption, this.lemmas);
+		} catch (TupleCodec.UnknownLemmaException e) {
+			// The value was written after our copy of the dictionary was loaded
+			this.loadLemmas(tx);
+			try {
+				return TupleCodec.decode(value, caption, this.lemmas);
+			} catch (TupleCodec.UnknownLemmaException ex) {
+				return null;
+			}
+		}
+	}
+
+	public ArrayList<ArrayList<String>> get(String caption) {
+		return this.getTransaction(Collections.singletonList(caption)).get(caption);
+	}
+
 	public void putTransaction(Map<String, ArrayList<ArrayList<String>>> captionsToTuples) {
-		//Stopwatch timer = Stopwatch.createStarted();
-		try (Env env = new Env()) {
-			env.setMapSize(10000L*2560*4096); // 100GB
-			env.open(this.dbPath);
-			try (Database db = env.openDatabase()) {
-				try (Transaction tx = env.createWriteTransaction()) {					
+		long start = System.nanoTime();
+		this.beginTransaction();
+		try {
+			// LMDB allows a single writer at a time
+			synchronized (this) {
+				final Map<String, Integer> added = new LinkedHashMap<String, Integer>();
+				try (Transaction tx = this.env.createWriteTransaction()) {
+					this.loadLemmas(tx);
+					final int base = this.lemmas.size();
+					TupleCodec.LemmaIds ids = lemma -> {
+						int id = this.lemmas.id(lemma);
+						if (id < 0) {
+							Integer newId = added.get(lemma);
+							if (newId == null) {
+								newId = base + added.size();
+								this.lemmaDb.put(tx, Ints.toByteArray(newId), lemma.getBytes(StandardCharsets.UTF_8));
+								added.put(lemma, newId);
+							}
+							id = newId;
+						}
+						return id;
+					};
 					for(Entry<String, ArrayList<ArrayList<String>>> item: captionsToTuples.entrySet()) {
 						try {
-							db.put(tx, conf.asByteArray(item.getKey()), conf.asByteArray(item.getValue()));
+							byte[] caption = item.getKey().getBytes(StandardCharsets.UTF_8);
+							this.tuples.put(tx, key(caption), this.codec.encode(item.getKey(), item.getValue(), ids));
 						}
 						catch (LMDBException ex){
-							System.err.println(String.format("Error: Could not cache item to %s with key:\n\"%s\"\nCaption may be too long",
-									MoreObjects.firstNonNull(this.dbPath, "NULL"), item.getKey()));
+							System.err.println(String.format("Error: Could not cache item to %s with key:\n\"%s\"\n%s",
+									MoreObjects.firstNonNull(this.dbPath, "NULL"), item.getKey(), ex.getMessage()));
 						}
 					}
 					tx.commit();  // if commit is not called, the transaction is aborted
 				}
+				// Only publish the new ids once they are committed
+				for (Entry<String, Integer> lemma : added.entrySet()) {
+					this.lemmas.add(lemma.getValue(), lemma.getKey());
+				}
 			}
+		} finally {
+			this.endTransaction();
 		}
-		//System.out.println("putTransaction took: " + timer.stop());
+		SpiceMetrics metrics = SpiceMetrics.get();
+		metrics.recordMicros(SpiceMetrics.Histogram.CACHE_WRITE_MICROS, start);
+		metrics.add(SpiceMetrics.Counter.CACHE_WRITES, captionsToTuples.size());
 	}
 
-	@SuppressWarnings("unchecked")
 	public Map<String, ArrayList<ArrayList<String>>> getTransaction(List<String> captions) {
-		//Stopwatch timer = Stopwatch.createStarted();
+		long start = System.nanoTime();
 		Map<String, ArrayList<ArrayList<String>>> results = new HashMap<String, ArrayList<ArrayList<String>>>();
-		try (Env env = new Env()) {
-			env.open(this.dbPath);
-			try (Database db = env.openDatabase()) {
-				for (String caption: captions){
-					byte[] val = db.get(conf.asByteArray(caption));
-					if (val != null) {
-						results.put(caption, (ArrayList<ArrayList<String>>)conf.asObject(val));
+		// Look up keys in sorted order so that pages are visited sequentially
+		TreeMap<byte[], String> keys = new TreeMap<byte[], String>(UnsignedBytes.lexicographicalComparator());
+		for (String caption: captions){
+			keys.put(key(caption.getBytes(StandardCharsets.UTF_8)), caption);
+		}
+		// Keys are copied into native memory and values are read straight from the memory map
+		DirectBuffer key = new DirectBuffer(ByteBuffer.allocateDirect(KEY_LENGTH));
+		DirectBuffer value = new DirectBuffer();
+		this.beginTransaction();
+		try (Transaction tx = this.env.createReadTransaction()) {
+			for (Entry<byte[], String> item: keys.entrySet()){
+				key.putBytes(0, item.getKey());
+				if (this.tuples.get(tx, key, value) == 0) {
+					ArrayList<ArrayList<String>> tuples = this.decode(tx, value,
+							item.getValue().getBytes(StandardCharsets.UTF_8));
+					if (tuples != null) {
+						results.put(item.getValue(), tuples);
 					}
 				}
 			}
+		} finally {
+			this.endTransaction();
 		}
-		//System.out.println("getTransaction took: " + timer.stop());
+		SpiceMetrics metrics = SpiceMetrics.get();
+		metrics.recordMicros(SpiceMetrics.Histogram.CACHE_READ_MICROS, start);
+		metrics.add(SpiceMetrics.Counter.CACHE_HITS, results.size());
+		metrics.add(SpiceMetrics.Counter.CACHE_MISSES, keys.size() - results.size());
 		return results;
 	}
 
@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Worker processes that parse captions for a SpiceParser (-workers N). Each
+ * worker is a separate JVM with its own annotator, so parsing is not limited
+ * by the scaling of a single CoreNLP pipeline or by garbage collection of one
+ * large heap. Captions are sent to idle workers in chunks over their standard
+ * input, one json array per line, and each worker replies on its standard
+ * output with one line holding the tuples of every caption in the chunk and
+ * the worker's metrics since its last reply, which are added to those of this
+ * process. The tuples are handed back on the calling thread, so the parser
+ * remains the only writer of the cache.
+ *
+ * A worker whose process fails, or that does not reply to a chunk in time, is
+ * retired and replaced, up to MAX_RESTARTS times, and its chunk is given to
+ * another worker once.
+ */
+public class ParseWorkers implements Closeable {
+
+	/** Largest number of captions sent to a worker at once */
+	protected static final int MAX_CHUNK = 1000;
+	/** Largest number of failed workers replaced over the life of the pool */
+	protected static final int MAX_RESTARTS = 3;
+	/** Time a worker is given to reply to any chunk, which covers loading its models */
+	protected static final long REPLY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	/** Further time a worker is given to reply for each caption of a chunk */
+	protected static final long CAPTION_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+	/**
+	 * An error reported by a worker that is still able to parse other chunks.
+	 */
+	protected static class WorkerException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public WorkerException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A running worker process.
+	 */
+	protected static class Worker {
+		protected final Process process;
+		protected final Writer requests;
+		protected final BufferedReader responses;
+		protected final JSONParser parser;
+		protected final ExecutorService reader;
+
+		protected Worker(List<String> command) throws IOException {
+			ProcessBuilder builder = new ProcessBuilder(command);
+			// Progress messages of the worker are shown with those of this process
+			builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+			this.process = builder.start();
+			this.requests = new BufferedWriter(new OutputStreamWriter(this.process.getOutputStream(), StandardCharsets.UTF_8));
+			this.responses = new BufferedReader(new InputStreamReader(this.process.getInputStream(), StandardCharsets.UTF_8));
+			this.parser = new JSONParser();
+			// Replies are read on their own thread, so that a worker that hangs can be given up on
+			this.reader = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+					.setDaemon(true).setNameFormat("spice-parse-worker-%d").build());
+		}
+
+		protected List<ArrayList<ArrayList<String>>> parse(List<String> captions, long timeoutMillis)
+				throws IOException, InterruptedException {
+			this.requests.write(JSONArray.toJSONString(captions));
+			this.requests.write('\n');
+			this.requests.flush();
+			Future<String> reply = this.reader.submit(this.responses::readLine);
+			String line;
+			try {
+				line = reply.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				reply.cancel(true);
+				throw new IOException(String.format("Parse worker did not reply to %d captions within %d ms",
+						captions.size(), timeoutMillis));
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+			if (line == null) {
+				throw new IOException("Parse worker exited unexpectedly");
+			}
+			List<ArrayList<ArrayList<String>>> tuples = readResponse(line, this.parser, SpiceMetrics.get());
+			if (tuples.size() != captions.size()) {
+				throw new IOException(String.format("Parse worker returned tuples of %d captions, expected %d",
+						tuples.size(), captions.size()));
+			}
+			return tuples;
+		}
+
+		protected void destroy() {
+			this.process.destroyForcibly();
+			this.reader.shutdownNow();
+		}
+
+		protected void close() {
+			try {
+				// Workers exit at the end of their input
+				this.requests.close();
+				if (!this.process.waitFor(10, TimeUnit.SECONDS)) {
+					this.process.destroyForcibly();
+				}
+			} catch (IOException | InterruptedException e) {
+				this.process.destroyForcibly();
+			}
+			this.reader.shutdownNow();
+		}
+	}
+
+	protected final List<String> command;
+	protected final List<Worker> workers; // running, guarded by this
+	protected final BlockingQueue<Worker> idle;
+	protected final ExecutorService senders;
+	protected final long replyTimeoutMillis;
+	protected final long captionTimeoutMillis;
+	protected int restarts;
+
+	/**
+	 * Starts args.workers worker processes, which share args.numThreads parsing
+	 * threads and each have a heap of args.workerHeap.
+	 */
+	public ParseWorkers(SpiceArguments args) throws IOException {
+		this(command(args), args.workers, REPLY_TIMEOUT_MILLIS, CAPTION_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Starts the given number of workers, each running the given command and
+	 * given replyTimeoutMillis, plus captionTimeoutMillis per caption, to reply to a chunk.
+	 */
+	protected ParseWorkers(List<String> command, int numWorkers, long replyTimeoutMillis, long captionTimeoutMillis)
+			throws IOException {
+		this.command = command;
+		this.replyTimeoutMillis = replyTimeoutMillis;
+		this.captionTimeoutMillis = captionTimeoutMillis;
+		this.workers = new ArrayList<Worker>();
+		this.idle = new ArrayBlockingQueue<Worker>(numWorkers);
+		this.senders = Executors.newFixedThreadPool(numWorkers);
+		this.restarts = 0;
+		System.err.println(String.format("Starting %d parse workers", numWorkers));
+		try {
+			for (int i = 0; i < numWorkers; ++i) {
+				Worker worker = new Worker(this.command);
+				this.workers.add(worker);
+				this.idle.add(worker);
+			}
+		} catch (IOException e) {
+			this.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * The command line of a worker, running this class on the classpath and
+	 * with the JVM options of the current JVM, apart from its heap size.
+	 */
+	protected static List<String> command(SpiceArguments args) {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if (inherited(option)) {
+				command.add(option);
+			}
+		}
+		command.add("-Xmx" + args.workerHeap);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ParseWorkers.class.getName());
+		command.add("-threads");
+		command.add(Integer.toString(Math.max(1, args.numThreads / args.workers)));
+		command.add("-parser");
+		command.add(args.parser);
+		if (args.fastParser != null) {
+			command.add("-fastParser");
+			command.add(args.fastParser);
+			command.add("-routeLength");
+			command.add(Integer.toString(args.routeLength));
+		}
+		return command;
+	}
+
+	/**
+	 * Returns false for JVM options that workers must not share with the main
+	 * process, such as its heap size and the ports of a debugger or JMX agent.
+	 */
+	protected static boolean inherited(String option) {
+		return !option.startsWith("-Xmx") && !option.startsWith("-agentlib:jdwp") && !option.startsWith("-Xrunjdwp")
+				&& !option.startsWith("-Dcom.sun.management.jmxremote.port")
+				&& !option.startsWith("-Dcom.sun.management.jmxremote.rmi.port");
+	}
+
+	/**
+	 * Splits captions into chunks small enough to keep every worker busy until the end.
+	 */
+	protected static List<List<String>> chunks(List<String> captions, int workers) {
+		int size = Math.max(1, Math.min(MAX_CHUNK, (captions.size() + workers - 1) / workers));
+		List<List<String>> chunks = new ArrayList<List<String>>();
+		for (int start = 0; start < captions.size(); start += size) {
+			chunks.add(captions.subList(start, Math.min(start + size, captions.size())));
+		}
+		return chunks;
+	}
+
+	/**
+	 * Parses the given captions, passing the tuples of each chunk to results on
+	 * the calling thread as the chunks complete.
+	 */
+	public void parse(List<String> captions, Consumer<Map<String, ArrayList<ArrayList<String>>>> results) {
+		CompletionService<Map<String, ArrayList<ArrayList<String>>>> completed =
+				new ExecutorCompletionService<Map<String, ArrayList<ArrayList<String>>>>(this.senders);
+		int numWorkers;
+		synchronized (this) {
+			// Once every worker has failed, take() reports it
+			numWorkers = Math.max(1, this.workers.size());
+		}
+		List<List<String>> chunks = chunks(captions, numWorkers);
+		for (final List<String> chunk : chunks) {
+			completed.submit(() -> {
+				List<ArrayList<ArrayList<String>>> tuples = this.parseChunk(chunk);
+				Map<String, ArrayList<ArrayList<String>>> chunkTuples = new HashMap<String, ArrayList<ArrayList<String>>>();
+				for (int i = 0; i < chunk.size(); ++i) {
+					chunkTuples.put(chunk.get(i), tuples.get(i));
+				}
+				return chunkTuples;
+			});
+		}
+		try {
+			for (int i = 0; i < chunks.size(); ++i) {
+				results.accept(completed.take().get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for parse workers", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error: Parse worker failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Parses a chunk with the next idle worker, retrying once if its process fails or hangs.
+	 */
+	protected List<ArrayList<ArrayList<String>>> parseChunk(List<String> chunk) throws IOException, InterruptedException {
+		for (int attempt = 0;; ++attempt) {
+			Worker worker = this.take();
+			try {
+				List<ArrayList<ArrayList<String>>> tuples = worker.parse(chunk,
+						this.replyTimeoutMillis + this.captionTimeoutMillis * chunk.size());
+				this.idle.add(worker);
+				return tuples;
+			} catch (WorkerException e) {
+				this.idle.add(worker);
+				throw e;
+			} catch (IOException e) {
+				System.err.println("Parse worker failed: " + e.getMessage());
+				this.retire(worker);
+				if (attempt > 0) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for an idle worker, failing once no workers are left.
+	 */
+	protected Worker take() throws IOException, InterruptedException {
+		while (true) {
+			Worker worker = this.idle.poll(1, TimeUnit.SECONDS);
+			if (worker != null) {
+				return worker;
+			}
+			synchronized (this) {
+				if (this.workers.isEmpty()) {
+					throw new IOException("No parse workers are left");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops a failed worker, and starts another in its place unless too many have failed.
+	 */
+	protected synchronized void retire(Worker worker) {
+		worker.destroy();
+		this.workers.remove(worker);
+		if (this.restarts < MAX_RESTARTS) {
+			this.restarts += 1;
+			System.err.println("Restarting parse worker");
+			try {
+				Worker replacement = new Worker(this.command);
+				this.workers.add(replacement);
+				this.idle.add(replacement);
+			} catch (IOException e) {
+				System.err.println("Could not restart parse worker: " + e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		this.senders.shutdownNow();
+		for (Worker worker : this.workers) {
+			worker.close();
+		}
+		this.workers.clear();
+	}
+
+	/**
+	 * Writes the tuples of each caption of a chunk and the given metrics as a single line of json.
+	 */
+	protected static void writeResponse(Writer out, List<ArrayList<ArrayList<String>>> tuples, SpiceMetrics metrics)
+			throws IOException {
+		JsonStreamWriter json = new JsonStreamWriter(out, 0);
+		json.beginObject();
+		json.name("tuples").beginArray();
+		for (ArrayList<ArrayList<String>> captionTuples : tuples) {
+			json.beginArray();
+			for (ArrayList<String> tuple : captionTuples) {
+				json.beginArray();
+				for (String value : tuple) {
+					json.value(value);
+				}
+				json.endArray();
+			}
+			json.endArray();
+		}
+		json.endArray();
+		json.name("metrics");
+		metrics.writeRaw(json);
+		json.endObject();
+		out.write('\n');
+		out.flush();
+	}
+
+	/**
+	 * Reads the tuples in a line written by writeResponse, adding its metrics to
+	 * the given ones, or throws the error reported by a worker.
+	 */
+	protected static List<ArrayList<ArrayList<String>>> readResponse(String line, JSONParser parser,
+			SpiceMetrics metrics) throws IOException {
+		JSONObject response;
+		try {
+			response = (JSONObject) parser.parse(line);
+		} catch (ParseException | ClassCastException e) {
+			throw new IOException("Could not read parse worker response: " + e.toString());
+		}
+		if (response.containsKey("error")) {
+			throw new WorkerException("Parse worker failed: " + response.get("error"));
+		}
+		metrics.merge((JSONObject) response.get("metrics"));
+		List<ArrayList<ArrayList<String>>> tuples = new ArrayList<ArrayList<ArrayList<String>>>();
+		for (Object captionTuples : (JSONArray) response.get("tuples")) {
+			ArrayList<ArrayList<String>> parsed = new ArrayList<ArrayList<String>>();
+			for (Object tuple : (JSONArray) captionTuples) {
+				ArrayList<String> values = new ArrayList<String>();
+				for (Object value : (JSONArray) tuple) {
+					values.add((String) value);
+				}
+				parsed.add(values);
+			}
+			tuples.add(parsed);
+		}
+		return tuples;
+	}
+
+	/**
+	 * The worker process, started by ParseWorkers with the parser options.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8));
+		// Standard output carries responses only, so anything else printed goes to standard error
+		System.setOut(System.err);
+		SpiceArguments spiceArgs = new SpiceArguments(null, args, 0);
+		SpiceParser parser = new SpiceParser(new Annotator(spiceArgs));
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		JSONParser json = new JSONParser();
+		String line;
+		try {
+			while ((line = in.readLine()) != null) {
+				List<ArrayList<ArrayList<String>>> tuples = new ArrayList<ArrayList<ArrayList<String>>>();
+				try {
+					List<String> captions = new ArrayList<String>();
+					for (Object caption : (JSONArray) json.parse(line)) {
+						captions.add((String) caption);
+					}
+					Map<String, ArrayList<ArrayList<String>>> captionTuples = parser.generateTuples(captions);
+					for (String caption : captions) {
+						tuples.add(captionTuples.get(caption));
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					JSONObject error = new JSONObject();
+					error.put("error", e.toString());
+					out.write(error.toJSONString());
+					out.write('\n');
+					out.flush();
+					continue;
+				}
+				// Each reply carries the metrics recorded since the last one
+				SpiceMetrics metrics = SpiceMetrics.get();
+				writeResponse(out, tuples, metrics);
+				metrics.reset();
+			}
+		} finally {
+			parser.close();
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Reports how closely the tuples extracted with the parser chosen by -parser,
+ * -fastParser and -routeLength agree with those of the default PCFG pipeline,
+ * over every distinct caption in an input file. Tuples from the default
+ * pipeline are treated as the reference, and tuples are matched exactly.
+ */
+public class ParserAgreement {
+
+	static final String WARM_UP_CAPTION = "A dog runs on the grass.";
+	static final String[] ARITY_NAMES = { "All", "Object", "Attribute", "Relation" };
+
+	public int captions;
+	public int identical; // captions with the same set of tuples
+	public int[] baseTuples; // by arity, with index 0 for all tuples
+	public int[] otherTuples;
+	public int[] sharedTuples;
+
+	public ParserAgreement() {
+		this.captions = 0;
+		this.identical = 0;
+		this.baseTuples = new int[ARITY_NAMES.length];
+		this.otherTuples = new int[ARITY_NAMES.length];
+		this.sharedTuples = new int[ARITY_NAMES.length];
+	}
+
+	/**
+	 * Adds the tuples extracted from one caption by the default and the other parser.
+	 */
+	public void add(List<? extends List<String>> base, List<? extends List<String>> other) {
+		Set<List<String>> baseSet = new HashSet<List<String>>(base);
+		Set<List<String>> otherSet = new HashSet<List<String>>(other);
+		this.captions++;
+		if (baseSet.equals(otherSet)) {
+			this.identical++;
+		}
+		for (List<String> tuple : baseSet) {
+			count(this.baseTuples, tuple);
+			if (otherSet.contains(tuple)) {
+				count(this.sharedTuples, tuple);
+			}
+		}
+		for (List<String> tuple : otherSet) {
+			count(this.otherTuples, tuple);
+		}
+	}
+
+	private static void count(int[] counts, List<String> tuple) {
+		counts[0]++;
+		if (tuple.size() < counts.length) {
+			counts[tuple.size()]++;
+		}
+	}
+
+	/**
+	 * Agreement of the other parser's tuples with the default ones, for tuples of 
+	 * the given arity (0 for all).
+	 */
+	public Evaluation evaluation(int arity) {
+		return new Evaluation(this.sharedTuples[arity], this.otherTuples[arity], this.baseTuples[arity], false);
+	}
+
+	public void writeJSON(JsonStreamWriter writer, String parser, double baseSeconds, double otherSeconds)
+			throws IOException {
+		writer.beginObject();
+		writer.name("parser").value(parser);
+		writer.name("captions").value(this.captions);
+		writer.name("identical").value(this.identical);
+		writer.name("pcfg_seconds").value(baseSeconds);
+		writer.name("parser_seconds").value(otherSeconds);
+		for (int arity = 0; arity < ARITY_NAMES.length; ++arity) {
+			writer.name(ARITY_NAMES[arity]);
+			this.evaluation(arity).writeJSON(writer);
+		}
+		writer.endObject();
+	}
+
+	public String toString(String parser, double baseSeconds, double otherSeconds) {
+		String output = String.format("********  Agreement of %s with pcfg  ********\n", parser);
+		output += String.format("  captions:\t%d\n", this.captions);
+		output += String.format("  identical:\t%.3f\n", this.captions > 0 ? (double) this.identical / this.captions : 0.0);
+		output += String.format("  pcfg time:\t%.1fs\n", baseSeconds);
+		output += String.format("  %s time:\t%.1fs\n", parser, otherSeconds);
+		for (int arity = 0; arity < ARITY_NAMES.length; ++arity) {
+			Evaluation agreement = this.evaluation(arity);
+			output += String.format("\n%s tuples\n", ARITY_NAMES[arity]);
+			output += String.format("  f-score:\t%.3f\n", agreement.f);
+			output += String.format("  precision:\t%.3f\n", agreement.pr);
+			output += String.format("  recall:\t%.3f\n", agreement.re);
+		}
+		return output;
+	}
+
+	/**
+	 * Parses every distinct caption of the input with both parsers and reports their agreement.
+	 */
+	public static void run(SpiceArguments args) throws IOException, ParseException {
+		LinkedHashSet<String> unique = new LinkedHashSet<String>();
+		SpiceInputReader input = new SpiceInputReader(args.inputPath);
+		try {
+			JSONObject item;
+			while ((item = input.next()) != null) {
+				unique.add((String) item.get("test"));
+				for (Object ref : (JSONArray) item.get("refs")) {
+					unique.add((String) ref);
+				}
+			}
+		} finally {
+			input.close();
+		}
+		List<String> captions = new ArrayList<String>(unique);
+		if (captions.isEmpty()) {
+			System.err.println("No captions in " + args.inputPath);
+			return;
+		}
+
+		Annotator other = new Annotator(args);
+		String parser = other.description();
+		System.err.println(String.format("Parsing %d captions with pcfg", captions.size()));
+		Map<String, ArrayList<ArrayList<String>>> baseTuples;
+		double[] seconds = new double[2];
+		SpiceParser base = new SpiceParser(null, args.numThreads, args.synsets, false,
+				new Annotator(args.numThreads, Annotator.DEFAULT_BATCH_SIZE, Annotator.Backend.PCFG, null, 0));
+		try {
+			baseTuples = timeTuples(base, captions, seconds, 0);
+		} finally {
+			base.close();
+		}
+		System.err.println(String.format("Parsing %d captions with %s", captions.size(), parser));
+		Map<String, ArrayList<ArrayList<String>>> otherTuples;
+		SpiceParser candidate = new SpiceParser(null, args.numThreads, args.synsets, false, other);
+		try {
+			otherTuples = timeTuples(candidate, captions, seconds, 1);
+		} finally {
+			candidate.close();
+		}
+
+		ParserAgreement agreement = new ParserAgreement();
+		for (String caption : captions) {
+			agreement.add(baseTuples.get(caption), otherTuples.get(caption));
+		}
+		if (!args.silent) {
+			System.out.println(agreement.toString(parser, seconds[0], seconds[1]));
+		}
+		if (args.outputPath != null) {
+			JsonStreamWriter writer = SpiceScorer.openOutput(args);
+			agreement.writeJSON(writer, parser, seconds[0], seconds[1]);
+			writer.close();
+		}
+	}
+
+	/**
+	 * Extracts tuples, recording the parse time excluding model loading in seconds[index].
+	 */
+	private static Map<String, ArrayList<ArrayList<String>>> timeTuples(SpiceParser parser, List<String> captions,
+			double[] seconds, int index) {
+		// Loads the models with a caption that is not timed again
+		String warmUp = WARM_UP_CAPTION;
+		while (captions.contains(warmUp)) {
+			warmUp += " It is sunny.";
+		}
+		parser.loadTuples(Arrays.asList(warmUp));
+		Stopwatch timer = Stopwatch.createStarted();
+		Map<String, ArrayList<ArrayList<String>>> tuples = parser.loadTuples(captions);
+		seconds[index] = timer.stop().elapsed(TimeUnit.MILLISECONDS) / 1000.0;
+		return tuples;
+	}
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * The per-image results of one shard of an evaluation (-shard k/N), to be
+ * combined with the other shards by the merge command.
+ *
+ * Shard k of N scores input images k-1, k-1+N, k-1+2N and so on. Its partial
+ * file holds one line of compact json describing the shard, followed by one
+ * line per image in the format of the output file. Merging takes images from
+ * the shards in turn, so they are scored into the totals and written out in
+ * input order, exactly as by a single process.
+ */
+public class PartialStats implements Closeable {
+
+	protected final Writer out;
+	protected final JsonStreamWriter json;
+
+	/**
+	 * Starts the partial file of shard k (from 1) of N, scored with the given
+	 * options (see Checkpoint.options).
+	 */
+	public PartialStats(String path, String inputPath, int shard, int shards, boolean detailed,
+			TupleCategories categories, Map<String, String> options) throws IOException {
+		this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8), 1 << 16);
+		this.json = new JsonStreamWriter(this.out, 0);
+		this.json.beginObject();
+		this.json.name("input").value(inputPath);
+		this.json.name("shard").value(shard);
+		this.json.name("shards").value(shards);
+		this.json.name("detailed").value(detailed);
+		this.json.name("categories").beginArray();
+		for (String name : categories.names()) {
+			this.json.value(name);
+		}
+		this.json.endArray();
+		this.json.name("options").beginObject();
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			// The merged output is indented as the merge itself is asked to
+			if (!option.getKey().equals("indent")) {
+				this.json.name(option.getKey()).value(option.getValue());
+			}
+		}
+		this.json.endObject();
+		this.json.endObject();
+		this.out.write('\n');
+	}
+
+	/**
+	 * Returns true if the image at the given position of the input belongs to shard k of N.
+	 */
+	public static boolean inShard(int position, int shard, int shards) {
+		return position % shards == shard - 1;
+	}
+
+	/**
+	 * Appends the per-image results held by stats.
+	 */
+	public void write(SpiceStats stats) throws IOException {
+		for (int i = 0; i < stats.numResults(); ++i) {
+			stats.writeResult(this.json, i);
+			this.out.write('\n');
+		}
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.out.close();
+	}
+
+	/**
+	 * A partial file being merged.
+	 */
+	protected static class Shard implements Closeable {
+		public final String path;
+		public final BufferedReader reader;
+		public final JSONObject header;
+		protected final JSONParser parser;
+
+		public Shard(String path) throws IOException {
+			this.path = path;
+			this.reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8);
+			this.parser = new JSONParser();
+			this.header = this.next();
+			if (this.header == null || this.header.get("shard") == null) {
+				throw new IOException(path + " is not a partial file written with -shard");
+			}
+			if (!(this.header.get("options") instanceof JSONObject)) {
+				throw new IOException(path + " does not record the options it was scored with, score the shard again");
+			}
+		}
+
+		public int shard() {
+			return ((Number) this.header.get("shard")).intValue();
+		}
+
+		public int shards() {
+			return ((Number) this.header.get("shards")).intValue();
+		}
+
+		public JSONObject next() throws IOException {
+			String line = this.reader.readLine();
+			if (line == null) {
+				return null;
+			}
+			try {
+				return (JSONObject) this.parser.parse(line);
+			} catch (ParseException | ClassCastException e) {
+				throw new IOException("Could not read " + this.path + ": " + e.toString());
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.reader.close();
+		}
+	}
+
+	/**
+	 * Combines the partial files of every shard of an evaluation, writing the
+	 * output file and summary a single process would have.
+	 */
+	public static void merge(List<String> paths, SpiceArguments args) throws IOException {
+		if (paths.isEmpty()) {
+			throw new IOException("No partial files given");
+		}
+		List<Shard> shards = new ArrayList<Shard>();
+		try {
+			for (String path : paths) {
+				shards.add(new Shard(path));
+			}
+			shards.sort((a, b) -> Integer.compare(a.shard(), b.shard()));
+			JSONObject first = shards.get(0).header;
+			for (int i = 0; i < shards.size(); ++i) {
+				JSONObject header = shards.get(i).header;
+				if (shards.get(i).shards() != shards.size() || shards.get(i).shard() != i + 1) {
+					throw new IOException(String.format("Expected the partial files of shards 1 to %d, but %s is shard %d/%d",
+							shards.size(), shards.get(i).path, shards.get(i).shard(), shards.get(i).shards()));
+				}
+				for (String option : new String[] { "input", "detailed", "categories" }) {
+					if (!first.get(option).equals(header.get(option))) {
+						throw new IOException(String.format("%s and %s differ in %s", shards.get(0).path,
+								shards.get(i).path, option));
+					}
+				}
+				// Shards parsed or matched differently would not add up to a single run
+				JSONObject firstOptions = (JSONObject) first.get("options");
+				JSONObject options = (JSONObject) header.get("options");
+				Set<Object> optionNames = new TreeSet<Object>(firstOptions.keySet());
+				optionNames.addAll(options.keySet());
+				for (Object option : optionNames) {
+					if (!Objects.equals(firstOptions.get(option), options.get(option))) {
+						throw new IOException(String.format("%s and %s differ in %s (%s, %s)", shards.get(0).path,
+								shards.get(i).path, option, firstOptions.get(option), options.get(option)));
+					}
+				}
+			}
+
+			List<String> names = new ArrayList<String>();
+			for (Object name : (JSONArray) first.get("categories")) {
+				names.add((String) name);
+			}
+			boolean detailed = (Boolean) first.get("detailed");
+			SpiceStats stats = new SpiceStats(TupleCategories.named(names), detailed);
+			JsonStreamWriter output = args.outputPath == null ? null : SpiceScorer.openOutput(args);
+			if (output != null) {
+				output.beginArray();
+			}
+			for (int position = 0;; ++position) {
+				Shard shard = shards.get(position % shards.size());
+				JSONObject item = shard.next();
+				if (item == null) {
+					break;
+				}
+				stats.add(result(item, names, detailed));
+				// Written out in windows, as with -stream
+				if (stats.numResults() == args.windowSize) {
+					flush(stats, output);
+				}
+			}
+			flush(stats, output);
+			for (Shard shard : shards) {
+				if (shard.next() != null) {
+					throw new IOException("Partial files do not cover the same input, " + shard.path + " has more images");
+				}
+			}
+			if (output != null) {
+				output.endArray();
+				output.close();
+			}
+			if (!args.silent) {
+				System.out.println(stats.toString());
+			}
+		} finally {
+			for (Shard shard : shards) {
+				shard.close();
+			}
+		}
+	}
+
+	private static void flush(SpiceStats stats, JsonStreamWriter output) throws IOException {
+		if (output != null) {
+			stats.writeResults(output);
+		}
+		stats.clearResults();
+	}
+
+	/**
+	 * Reads back a per-image result written by SpiceStats.writeResult.
+	 */
+	protected static SpiceStats.ImageScore result(JSONObject item, List<String> names, boolean detailed) {
+		SpiceStats.ImageScore result = new SpiceStats.ImageScore();
+		result.imageId = item.get("image_id");
+		// Inserted in the order of TupleCategories.evaluate, so they are written in the same order
+		JSONObject scores = (JSONObject) item.get("scores");
+		result.score = new HashMap<String, Evaluation>();
+		result.score.put("All", Evaluation.fromJSON((JSONObject) scores.get("All")));
+		for (String name : names) {
+			result.score.put(name, Evaluation.fromJSON((JSONObject) scores.get(name)));
+		}
+		if (detailed) {
+			result.testTuples = tuples((JSONArray) item.get("test_tuples"));
+			result.refTuples = tuples((JSONArray) item.get("ref_tuples"));
+		}
+		return result;
+	}
+
+	/**
+	 * Tuples as written by TupleSet.writeJSON, with each concept held as its text.
+	 */
+	protected static TupleSet tuples(JSONArray json) {
+		ArrayList<SemanticTuple> tuples = new ArrayList<SemanticTuple>();
+		for (Object value : json) {
+			JSONObject tuple = (JSONObject) value;
+			List<SemanticConcept> concepts = new ArrayList<SemanticConcept>();
+			for (Object concept : (JSONArray) tuple.get("tuple")) {
+				concepts.add(new SemanticConcept((String) concept, new HashSet<Integer>()));
+			}
+			SemanticTuple restored;
+			if (concepts.size() == 1) {
+				restored = new SemanticTuple(concepts.get(0));
+			} else if (concepts.size() == 2) {
+				restored = new SemanticTuple(concepts.get(0), concepts.get(1));
+			} else {
+				restored = new SemanticTuple(concepts.get(0), concepts.get(1), concepts.get(2));
+			}
+			restored.truthValue = (Boolean) tuple.get("truth_value");
+			tuples.add(restored);
+		}
+		return new TupleSet(tuples);
+	}
+
+	/**
+	 * Parses a shard given as "k/N".
+	 */
+	public static int[] parseShard(String shard) {
+		String[] parts = shard.split("/");
+		if (parts.length == 2) {
+			try {
+				int k = Integer.parseInt(parts[0]);
+				int n = Integer.parseInt(parts[1]);
+				if (k >= 1 && k <= n) {
+					return new int[] { k, n };
+				}
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+		}
+		throw new IllegalArgumentException("Invalid shard \"" + shard + "\", expected k/N with 1 <= k <= N");
+	}
+
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.common.primitives.Ints;
+
+/**
+ * Reference captions compiled ahead of time, so that scoring runs only need to
+ * parse test captions. For each image_id a bundle holds the reference captions
+ * and the tuples of the scene graph merged from them, exactly as they would be
+ * built when scoring.
+ *
+ * A bundle is a directory of segment files, which are memory-mapped and never
+ * modified. Compiling new references into an existing bundle writes a new
+ * segment holding only the images that changed, which replace their entries
+ * in earlier segments. Each segment is laid out as:
+ *
+ *   int      MAGIC
+ *   byte     format version
+ *   string   parser description, byte 1 if synsets were used to merge nodes
+ *   per image: string key, varint caption count, captions,
+ *              varint tuple count, per tuple: byte arity, arity x varint concept id
+ *   concepts: varint count, per concept: varint lemma count, lemmas,
+ *             varint synset count, synsets (in display order)
+ *   index:    varint image count, per image: string key, long offset
+ *   long     concepts offset, long index offset, int MAGIC
+ *
+ * Strings are stored as a varint length followed by UTF-8 bytes, and image keys
+ * are image_ids in json.
+ */
+public class ReferenceBundle implements Closeable {
+
+	protected static final int MAGIC = 0x53505246; // "SPRF"
+	protected static final byte FORMAT_VERSION = 1;
+	protected static final int TRAILER_LENGTH = 20;
+	protected static final long SEGMENT_LIMIT = 1L << 30;
+	protected static final String SEGMENT_PREFIX = "refs-";
+	protected static final String SEGMENT_SUFFIX = ".bundle";
+
+	protected static class Segment {
+		public final File file;
+		public final MappedByteBuffer buffer;
+		public ConceptDictionary.Entry[] concepts;
+
+		public Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	protected File dir;
+	protected String parser; // null until a segment is written
+	protected boolean synsets;
+	protected List<Segment> segments;
+	protected Map<String, Segment> imageSegments;
+	protected Map<String, Integer> imageOffsets;
+
+	protected ReferenceBundle(File dir) {
+		this.dir = dir;
+		this.parser = null;
+		this.synsets = false;
+		this.segments = new ArrayList<Segment>();
+		this.imageSegments = new HashMap<String, Segment>();
+		this.imageOffsets = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Opens the bundle in a directory, which is empty if the directory has no segments.
+	 */
+	public static ReferenceBundle open(String path) throws IOException {
+		ReferenceBundle bundle = new ReferenceBundle(new File(path));
+		File[] files = bundle.dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		if (files != null) {
+			// Later segments replace the images of earlier ones
+			Arrays.sort(files);
+			for (File file : files) {
+				bundle.load(file);
+			}
+		}
+		return bundle;
+	}
+
+	protected void load(File file) throws IOException {
+		MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE || channel.size() < TRAILER_LENGTH + 5) {
+				throw new IOException("Not a reference bundle segment: " + file);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		Segment segment = new Segment(file, buffer);
+		try {
+			ByteBuffer in = buffer.duplicate();
+			if (in.getInt() != MAGIC || in.getInt(in.limit() - 4) != MAGIC) {
+				throw new IOException("Not a reference bundle segment: " + file);
+			}
+			if (in.get() != FORMAT_VERSION) {
+				throw new IOException("Reference bundle segment " + file + " was written by another version of SPICE");
+			}
+			String parser = readString(in);
+			boolean synsets = in.get() != 0;
+			if (this.parser != null && (!this.parser.equals(parser) || this.synsets != synsets)) {
+				throw new IOException("Reference bundle segment " + file + " was compiled with different options");
+			}
+			this.parser = parser;
+			this.synsets = synsets;
+
+			in.position(in.limit() - TRAILER_LENGTH);
+			int conceptsOffset = (int) in.getLong();
+			int indexOffset = (int) in.getLong();
+			in.position(conceptsOffset);
+			segment.concepts = new ConceptDictionary.Entry[readVarint(in)];
+			for (int i = 0; i < segment.concepts.length; ++i) {
+				List<String> lemmas = new ArrayList<String>();
+				for (int n = readVarint(in); n > 0; --n) {
+					lemmas.add(readString(in));
+				}
+				int[] synsetOrder = new int[readVarint(in)];
+				for (int j = 0; j < synsetOrder.length; ++j) {
+					synsetOrder[j] = readVarint(in);
+				}
+				segment.concepts[i] = ConceptDictionary.entry(lemmas, Ints.asList(synsetOrder));
+			}
+			in.position(indexOffset);
+			for (int n = readVarint(in); n > 0; --n) {
+				String key = readString(in);
+				this.imageSegments.put(key, segment);
+				this.imageOffsets.put(key, (int) in.getLong());
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Reference bundle segment " + file + " is corrupt", e);
+		}
+		this.segments.add(segment);
+	}
+
+	@Override
+	public void close() {
+		// Mapped segments are released when no longer referenced
+		this.segments.clear();
+		this.imageSegments.clear();
+		this.imageOffsets.clear();
+	}
+
+	public static String key(Object imageId) {
+		return JSONValue.toJSONString(imageId);
+	}
+
+	public int size() {
+		return this.imageOffsets.size();
+	}
+
+	public boolean contains(Object imageId) {
+		return this.imageOffsets.containsKey(key(imageId));
+	}
+
+	/**
+	 * Checks that the bundle was compiled with the given parser and synset setting.
+	 */
+	public void checkOptions(String parser, boolean synsets) throws IOException {
+		if (this.parser != null && (!this.parser.equals(parser) || this.synsets != synsets)) {
+			throw new IOException(String.format("Reference bundle %s was compiled with -parser %s%s",
+					this.dir, this.parser, this.synsets ? "" : " -noSynsets"));
+		}
+	}
+
+	/**
+	 * Positions a buffer at the record of an image, or returns null if it is not in the bundle.
+	 */
+	protected ByteBuffer record(String key) {
+		Segment segment = this.imageSegments.get(key);
+		if (segment == null) {
+			return null;
+		}
+		ByteBuffer in = segment.buffer.duplicate();
+		in.position(this.imageOffsets.get(key));
+		readString(in); // key
+		return in;
+	}
+
+	/**
+	 * The reference captions of an image, or an empty list if it is not in the bundle.
+	 */
+	public List<String> captions(Object imageId) {
+		List<String> captions = new ArrayList<String>();
+		ByteBuffer in = this.record(key(imageId));
+		if (in != null) {
+			for (int n = readVarint(in); n > 0; --n) {
+				captions.add(readString(in));
+			}
+		}
+		return captions;
+	}
+
+	/**
+	 * Checks that the given reference captions of an image, e.g. from the input
+	 * file, are those it was compiled with, in any order.
+	 */
+	public void checkRefs(Object imageId, List<String> refs) throws IOException {
+		if (!new HashSet<String>(refs).equals(new HashSet<String>(this.captions(imageId)))) {
+			throw new IOException(String.format("The refs of image %s differ from those compiled into reference bundle %s, "
+					+ "compile them into it or omit them from the input", key(imageId), this.dir));
+		}
+	}
+
+	/**
+	 * The tuples of the merged reference scene graph of an image.
+	 */
+	public TupleSet tuples(Object imageId) throws IOException {
+		String key = key(imageId);
+		ByteBuffer in = this.record(key);
+		if (in == null) {
+			throw new IOException("Image " + key + " is not in reference bundle " + this.dir);
+		}
+		for (int n = readVarint(in); n > 0; --n) {
+			int length = readVarint(in);
+			in.position(in.position() + length);
+		}
+		ConceptDictionary.Entry[] concepts = this.imageSegments.get(key).concepts;
+		int numTuples = readVarint(in);
+		ArrayList<SemanticTuple> tuples = new ArrayList<SemanticTuple>(numTuples);
+		for (int i = 0; i < numTuples; ++i) {
+			int arity = in.get();
+			SemanticConcept[] tuple = new SemanticConcept[arity];
+			for (int j = 0; j < arity; ++j) {
+				tuple[j] = new SemanticConcept(concepts[readVarint(in)]);
+			}
+			switch (arity) {
+			case 1:
+				tuples.add(new SemanticTuple(tuple[0]));
+				break;
+			case 2:
+				tuples.add(new SemanticTuple(tuple[0], tuple[1]));
+				break;
+			case 3:
+				tuples.add(new SemanticTuple(tuple[0], tuple[1], tuple[2]));
+				break;
+			default:
+				throw new IOException("Reference bundle segment for image " + key + " is corrupt");
+			}
+		}
+		return new TupleSet(tuples);
+	}
+
+	/**
+	 * Writes one new segment of the bundle.
+	 */
+	protected static class SegmentWriter implements Closeable {
+		protected File file;
+		protected File tempFile;
+		protected CountingOutputStream counter;
+		protected DataOutputStream out;
+		protected Map<ConceptDictionary.Entry, Integer> concepts;
+		protected Map<String, Long> offsets;
+
+		public SegmentWriter(File file, String parser, boolean synsets) throws IOException {
+			this.file = file;
+			this.tempFile = new File(file.getPath() + ".tmp");
+			this.counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(this.tempFile), 1 << 16));
+			this.out = new DataOutputStream(this.counter);
+			this.concepts = new LinkedHashMap<ConceptDictionary.Entry, Integer>();
+			this.offsets = new LinkedHashMap<String, Long>();
+			this.out.writeInt(MAGIC);
+			this.out.writeByte(FORMAT_VERSION);
+			writeString(this.out, parser);
+			this.out.writeByte(synsets ? 1 : 0);
+		}
+
+		public long size() {
+			return this.counter.getCount();
+		}
+
+		public void add(String key, List<String> captions, TupleSet tuples) throws IOException {
+			this.offsets.put(key, this.counter.getCount());
+			writeString(this.out, key);
+			writeVarint(this.out, captions.size());
+			for (String caption : captions) {
+				writeString(this.out, caption);
+			}
+			writeVarint(this.out, tuples.size());
+			for (SemanticTuple tuple : tuples.tuples) {
+				this.out.writeByte(tuple.size());
+				for (SemanticConcept concept : tuple.tuple) {
+					Integer id = this.concepts.get(concept.entry);
+					if (id == null) {
+						id = this.concepts.size();
+						this.concepts.put(concept.entry, id);
+					}
+					writeVarint(this.out, id);
+				}
+			}
+		}
+
+		/**
+		 * Completes the segment, which only then appears in the bundle.
+		 */
+		@Override
+		public void close() throws IOException {
+			long conceptsOffset = this.counter.getCount();
+			writeVarint(this.out, this.concepts.size());
+			for (ConceptDictionary.Entry concept : this.concepts.keySet()) {
+				writeVarint(this.out, concept.lemmas.length);
+				for (String lemma : concept.lemmas) {
+					writeString(this.out, lemma);
+				}
+				writeVarint(this.out, concept.synsets.length);
+				for (int synset : concept.synsets) {
+					writeVarint(this.out, synset);
+				}
+			}
+			long indexOffset = this.counter.getCount();
+			writeVarint(this.out, this.offsets.size());
+			for (Entry<String, Long> offset : this.offsets.entrySet()) {
+				writeString(this.out, offset.getKey());
+				this.out.writeLong(offset.getValue());
+			}
+			this.out.writeLong(conceptsOffset);
+			this.out.writeLong(indexOffset);
+			this.out.writeInt(MAGIC);
+			this.out.close();
+			if (this.counter.getCount() > Integer.MAX_VALUE) {
+				throw new IOException("Reference bundle segment is too large: " + this.tempFile);
+			}
+			Files.move(this.tempFile.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	protected File segmentFile(int number) {
+		return new File(this.dir, String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * Compiles the reference captions of an input file into the bundle given by
+	 * -bundle. Only images with captions that are not yet in the bundle are
+	 * parsed and written, with their existing captions, to a new segment.
+	 */
+	public static void compile(SpiceArguments args) throws IOException, ParseException {
+		if (args.bundle == null) {
+			throw new IOException("Give the bundle directory to compile into with -bundle <dir>");
+		}
+		File dir = new File(args.bundle);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create bundle directory " + dir);
+		}
+		ReferenceBundle bundle = open(args.bundle);
+		Annotator annotator = new Annotator(args);
+		bundle.checkOptions(annotator.description(), args.synsets);
+
+		// Reference captions of each image, starting from those already in the bundle
+		LinkedHashMap<String, LinkedHashSet<String>> images = new LinkedHashMap<String, LinkedHashSet<String>>();
+		Map<String, Integer> existing = new HashMap<String, Integer>();
+		SpiceInputReader input = new SpiceInputReader(args.inputPath);
+		try {
+			JSONObject item;
+			while ((item = input.next()) != null) {
+				Object imageId = item.get("image_id");
+				String key = key(imageId);
+				LinkedHashSet<String> captions = images.get(key);
+				if (captions == null) {
+					captions = new LinkedHashSet<String>(bundle.captions(imageId));
+					existing.put(key, captions.size());
+					images.put(key, captions);
+				}
+				for (Object ref : (JSONArray) item.get("refs")) {
+					captions.add((String) ref);
+				}
+			}
+		} finally {
+			input.close();
+		}
+		List<String> changed = new ArrayList<String>();
+		for (Entry<String, LinkedHashSet<String>> image : images.entrySet()) {
+			if (image.getValue().size() > existing.get(image.getKey())) {
+				changed.add(image.getKey());
+			}
+		}
+		System.err.println(String.format("Compiling %d of %d images into %s", changed.size(), images.size(), dir));
+		if (changed.isEmpty()) {
+			return;
+		}
+
+		int nextSegment = bundle.segments.size();
+		while (bundle.segmentFile(nextSegment).exists()) {
+			nextSegment++;
+		}
+		SpiceParser parser = new SpiceParser(args.cache, args.numThreads, args.synsets, args.compressCache, annotator);
+		if (args.workers > 0) {
+			parser.setWorkers(new ParseWorkers(args));
+		}
+		SegmentWriter writer = null;
+		try {
+			for (int start = 0; start < changed.size(); start += args.windowSize) {
+				List<String> keys = changed.subList(start, Math.min(start + args.windowSize, changed.size()));
+				List<String> captions = new ArrayList<String>();
+				List<Integer> chunks = new ArrayList<Integer>();
+				for (String key : keys) {
+					captions.addAll(images.get(key));
+					chunks.add(images.get(key).size());
+				}
+				Map<String, ArrayList<ArrayList<String>>> tuples = parser.loadTuples(
+						new ArrayList<String>(new LinkedHashSet<String>(captions)));
+				List<SceneGraph> graphs = parser.buildSceneGraphs(captions, chunks, tuples);
+				for (int i = 0; i < keys.size(); ++i) {
+					if (writer == null) {
+						writer = new SegmentWriter(bundle.segmentFile(nextSegment++), annotator.description(), args.synsets);
+					}
+					writer.add(keys.get(i), new ArrayList<String>(images.get(keys.get(i))), new TupleSet(graphs.get(i)));
+					if (writer.size() > SEGMENT_LIMIT) {
+						writer.close();
+						writer = null;
+					}
+				}
+				System.err.println(String.format("Compiled %d images", start + keys.size()));
+			}
+			if (writer != null) {
+				writer.close();
+				writer = null;
+			}
+		} finally {
+			if (writer != null) {
+				// Leave no partial segment behind
+				writer.out.close();
+				writer.tempFile.delete();
+			}
+			parser.close();
+		}
+	}
+
+	protected static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	protected static int readVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	protected static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	protected static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[readVarint(in)];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -23,8 +23,9 @@ package edu.anu.spice;
 
 import java.io.IOException;
 import java.net.URL;
-import java.util.HashSet;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -49,20 +50,35 @@ public class SceneGraph implements java.io.Serializable {
 	protected static final MapFactory<SceneGraphNode, List<SceneGraphRelation>> innerMapFactory = MapFactory
 			.hashMapFactory();
 
-	protected SynonymDictionary synonyms;
+	protected SynsetCache synsets;
 	protected boolean allowConceptMerging;
+	// Nodes in the order they were added, and their positions by word and synset
+	protected final List<SceneGraphNode> nodes;
+	protected final Map<Integer, BitSet> nodesByLemma;
+	protected final Map<Integer, BitSet> nodesBySynset;
 
-	public SceneGraph(SynonymDictionary synonyms) {
+	public SceneGraph(SynsetCache synsets) {
 		this.graph = new DirectedMultiGraph<SceneGraphNode, SceneGraphRelation>(outerMapFactory, innerMapFactory);
-		this.synonyms = synonyms;
+		this.nodes = new ArrayList<SceneGraphNode>();
+		this.nodesByLemma = new HashMap<Integer, BitSet>();
+		this.nodesBySynset = new HashMap<Integer, BitSet>();
+		this.synsets = synsets;
 		this.allowConceptMerging = true;
 	}
 
-	public SceneGraph(SynonymDictionary synonyms, boolean mergeSimilarNodes) {
-		this(synonyms);
+	public SceneGraph(SynsetCache synsets, boolean mergeSimilarNodes) {
+		this(synsets);
 		this.allowConceptMerging = mergeSimilarNodes;
 	}
 
+	public SceneGraph(SynonymDictionary synonyms) {
+		this(new SynsetCache(synonyms));
+	}
+
+	public SceneGraph(SynonymDictionary synonyms, boolean mergeSimilarNodes) {
+		this(new SynsetCache(synonyms), mergeSimilarNodes);
+	}
+
 	public void addRelation(String obj1, String obj2, String rel) {
 		SceneGraphNode source = getOrAddNodeByString(obj1);
 		SceneGraphNode target = getOrAddNodeByString(obj2);
@@ -84,24 +100,23 @@ public class SceneGraph implements java.io.Serializable {
 	}
 
 	protected Set<Integer> getSynSets(String concept) {
-		concept = concept.trim().toLowerCase().replace(" ", "_");
-		Set<Integer> set = new HashSet<Integer>(synonyms.getSynSets(concept));
-		set.addAll(synonyms.getStemSynSets(concept));
-		return set;
+		return this.synsets.get(concept);
 	}
 
 	protected boolean addRelation(SceneGraphNode source, SceneGraphNode target, String relation) {
-		String word = relation.replaceAll("^be ", "");
+		String word = relation.startsWith("be ") ? relation.substring(3) : relation;
 		SemanticConcept concept = new SemanticConcept(word, this.getSynSets(word));
-		SceneGraphRelation new_rel = new SceneGraphRelation(source, target, concept);
-		for (SceneGraphRelation rel : this.graph.getAllEdges()) {
-			if (new_rel.equals(rel)) {
+		// Duplicates and similar relations must join the same pair of nodes
+		List<SceneGraphRelation> existing = this.graph.getEdges(source, target);
+		for (SceneGraphRelation rel : existing) {
+			if (concept.equals(rel.getRelation())) {
 				return false; // don't allow duplicates
 			}
 		}
+		SceneGraphRelation new_rel = new SceneGraphRelation(source, target, concept);
 		if (this.allowConceptMerging){
-			for (SceneGraphRelation rel : this.graph.getAllEdges()) {
-				if (new_rel.similarTo(rel)) { // Greedily find first match
+			for (SceneGraphRelation rel : existing) {
+				if (concept.similarTo(rel.getRelation())) { // Greedily find first match
 					rel.merge(new_rel);
 					return true;
 				}
@@ -116,26 +131,70 @@ public class SceneGraph implements java.io.Serializable {
 		return this.getOrAddNode(concept);
 	}
 
+	/**
+	 * Returns the positions of the nodes whose object shares a word or synset with 
+	 * the given concept. No other node can be equal or similar to it.
+	 */
+	protected BitSet candidateNodes(SemanticConcept concept) {
+		BitSet candidates = new BitSet(this.nodes.size());
+		ConceptDictionary.Key key = concept.key();
+		for (int id : key.ids) {
+			BitSet positions = this.nodesByLemma.get(id);
+			if (positions != null) {
+				candidates.or(positions);
+			}
+		}
+		for (int synset : key.synsets) {
+			BitSet positions = this.nodesBySynset.get(synset);
+			if (positions != null) {
+				candidates.or(positions);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Records the words and synsets of the node at the given position. Objects only
+	 * grow when merged, so this is also called again after a merge.
+	 */
+	protected void indexNode(int position) {
+		ConceptDictionary.Key key = this.nodes.get(position).getObject().key();
+		for (int id : key.ids) {
+			this.nodesByLemma.computeIfAbsent(id, k -> new BitSet()).set(position);
+		}
+		for (int synset : key.synsets) {
+			this.nodesBySynset.computeIfAbsent(synset, k -> new BitSet()).set(position);
+		}
+	}
+
 	protected SceneGraphNode getOrAddNode(SemanticConcept concept) {
-		SceneGraphNode similar_node = null;
-		SceneGraphNode new_node = new SceneGraphNode(concept);
-		float similarity = 0;
-		for (SceneGraphNode node : this.graph.getAllVertices()) {
-			if (new_node.getObject().equals(node.getObject())) {
+		BitSet candidates = this.candidateNodes(concept);
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+			SceneGraphNode node = this.nodes.get(i);
+			if (concept.equals(node.getObject())) {
 				return node; // ignore attributes in equals
-			} else { // merge with the most similar node
-				float curr_sim = new_node.similarity(node);
-				if (curr_sim > similarity){
-					similarity = curr_sim;
-					similar_node = node;
-				}
 			}
 		}
-		if (this.allowConceptMerging && similar_node != null) {
-			similar_node.merge(new_node);
-			return similar_node;
+		// Otherwise merge with the most similar node, the earliest added on ties
+		int similar_node = -1;
+		float similarity = 0;
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+			float curr_sim = concept.similarity(this.nodes.get(i).getObject());
+			if (curr_sim > similarity){
+				similarity = curr_sim;
+				similar_node = i;
+			}
+		}
+		SceneGraphNode new_node = new SceneGraphNode(concept);
+		if (this.allowConceptMerging && similar_node >= 0) {
+			SceneGraphNode node = this.nodes.get(similar_node);
+			node.merge(new_node);
+			this.indexNode(similar_node);
+			return node;
 		}
 		this.graph.addVertex(new_node);
+		this.nodes.add(new_node);
+		this.indexNode(this.nodes.size() - 1);
 		return new_node;
 	}
 
@@ -147,6 +206,10 @@ public class SceneGraph implements java.io.Serializable {
 		return this.graph.getAllVertices();
 	}
 
+	public int numNodes() {
+		return this.nodes.size();
+	}
+
 	public String toReadableString() {
 		StringBuilder buf = new StringBuilder();
 		buf.append(String.format("%-20s%-20s%-20s%n", "source", "reln", "target"));
@@ -21,9 +21,9 @@
 
 package edu.anu.spice;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
 
 /**
 *
@@ -35,11 +35,12 @@ public class SceneGraphNode implements java.io.Serializable {
 
 	private static final long serialVersionUID = 1L;
 	protected SemanticConcept object;
-	protected Set<SemanticConcept> attributes;
+	// A list, since merging changes the hash of an attribute in place
+	protected List<SemanticConcept> attributes;
 
 	public SceneGraphNode(SemanticConcept object) {
 		this.object = object;
-		this.attributes = new HashSet<SemanticConcept>();
+		this.attributes = new ArrayList<SemanticConcept>();
 		
 	}
 
@@ -76,7 +77,7 @@ public class SceneGraphNode implements java.io.Serializable {
 		return true;
 	}
 
-	public Set<SemanticConcept> getAttributes() {
+	public List<SemanticConcept> getAttributes() {
 		return this.attributes;
 	}
 
@@ -93,7 +94,9 @@ public class SceneGraphNode implements java.io.Serializable {
 			return false;
 		}
 		SceneGraphNode oNode = (SceneGraphNode) o;
-		return this.object.equals(oNode.object) && this.attributes.equals(oNode.attributes);
+		// Attributes are distinct, so compared as sets
+		return this.object.equals(oNode.object) && this.attributes.size() == oNode.attributes.size()
+				&& this.attributes.containsAll(oNode.attributes);
 	}
 
 	public boolean similarTo(Object o) {
@@ -21,14 +21,18 @@
 
 package edu.anu.spice;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
 
 import org.json.simple.JSONAware;
 
-import com.google.common.collect.ComparisonChain;
-import com.google.common.collect.Ordering;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Ints;
 
 import edu.stanford.nlp.ling.IndexedWord;
 
@@ -36,33 +40,66 @@ import edu.stanford.nlp.ling.IndexedWord;
  * SemanticConcepts are a small set of words or phrases and 
  * their associated Wordnet synsets.
  * 
+ * The words and synsets are held in an immutable entry of the ConceptDictionary,
+ * shared by all concepts with the same content. Merging points the concept at a
+ * new entry, so tuples and graph nodes holding the same concept see the change.
  */
 public class SemanticConcept implements JSONAware, Comparable<SemanticConcept>, java.io.Serializable {
 
-	protected HashSet<String> concepts; // e.g. word or phrase
-	protected HashSet<Integer> synsets;
-	private static final long serialVersionUID = 1L;
+	protected transient ConceptDictionary.Entry entry;
+	private static final long serialVersionUID = 2L;
 
 	public SemanticConcept(String concept, Set<Integer> synsets) {
-		this.concepts = new HashSet<String>();
-		this.concepts.add(concept);
-		this.synsets = new HashSet<Integer>();
-		this.synsets.addAll(synsets);
+		// Synsets are displayed and compared in the order of a HashSet built from them
+		HashSet<Integer> synsetOrder = new HashSet<Integer>();
+		synsetOrder.addAll(synsets);
+		this.entry = ConceptDictionary.entry(Collections.singletonList(concept), synsetOrder);
+	}
+
+	protected SemanticConcept(ConceptDictionary.Entry entry) {
+		this.entry = entry;
 	}
 
 	public SemanticConcept(IndexedWord word, HashSet<Integer> synsets) {
 		this(word.lemma().trim().toLowerCase(), synsets);
 	}
 
+	public Set<String> getConcepts() {
+		return ImmutableSet.copyOf(this.entry.lemmas);
+	}
+
+	public Set<Integer> getSynsets() {
+		return ImmutableSet.copyOf(Ints.asList(this.entry.synsets));
+	}
+
+	/**
+	 * Returns the interned content of this concept, which changes if it is merged.
+	 */
+	protected ConceptDictionary.Key key() {
+		return this.entry.key;
+	}
+
 	public boolean merge(SemanticConcept o) {
-		boolean changedConcepts = this.concepts.addAll(o.concepts);
-		boolean changedSynsets = this.synsets.addAll(o.synsets);
-		return changedConcepts || changedSynsets; 
+		ConceptDictionary.Key key = this.entry.key;
+		ConceptDictionary.Key otherKey = o.entry.key;
+		if (key == otherKey || (ConceptDictionary.containsAll(key.ids, otherKey.ids)
+				&& ConceptDictionary.containsAll(key.synsets, otherKey.synsets))) {
+			return false;
+		}
+		// Replay the additions into HashSets to keep the original display order
+		HashSet<String> concepts = new HashSet<String>();
+		Collections.addAll(concepts, this.entry.lemmas);
+		Collections.addAll(concepts, o.entry.lemmas);
+		HashSet<Integer> synsets = new HashSet<Integer>();
+		synsets.addAll(Ints.asList(this.entry.synsets));
+		synsets.addAll(Ints.asList(o.entry.synsets));
+		this.entry = ConceptDictionary.entry(concepts, synsets);
+		return true;
 	}
 
 	@Override
 	public int hashCode() {
-		return new int[] { this.concepts.hashCode(), this.synsets.hashCode() }.hashCode();
+		return this.entry.key.hashCode();
 	}
 
 	@Override
@@ -74,15 +111,31 @@ public class SemanticConcept implements JSONAware, Comparable<SemanticConcept>,
 			return false;
 		}
 		SemanticConcept oReln = (SemanticConcept) o;
-		return this.concepts.equals(oReln.concepts) && this.synsets.equals(oReln.synsets);
+		return this.entry.key == oReln.entry.key;
 	}
 
 	@Override
 	public int compareTo(SemanticConcept o){
-		return ComparisonChain.start()
-		    .compare(this.concepts, o.concepts, Ordering.<String>natural().lexicographical())
-		    .compare(this.synsets, o.synsets, Ordering.<Integer>natural().lexicographical())
-		    .result();
+		// Lexicographic over concepts and then synsets, in display order
+		String[] lemmas = this.entry.lemmas;
+		String[] otherLemmas = o.entry.lemmas;
+		for (int i = 0; i < lemmas.length && i < otherLemmas.length; ++i) {
+			int result = lemmas[i].compareTo(otherLemmas[i]);
+			if (result != 0) {
+				return result;
+			}
+		}
+		if (lemmas.length != otherLemmas.length) {
+			return lemmas.length < otherLemmas.length ? -1 : 1;
+		}
+		int[] synsets = this.entry.synsets;
+		int[] otherSynsets = o.entry.synsets;
+		for (int i = 0; i < synsets.length && i < otherSynsets.length; ++i) {
+			if (synsets[i] != otherSynsets[i]) {
+				return synsets[i] < otherSynsets[i] ? -1 : 1;
+			}
+		}
+		return Integer.compare(synsets.length, otherSynsets.length);
 	}
 
 	/**
@@ -96,14 +149,13 @@ public class SemanticConcept implements JSONAware, Comparable<SemanticConcept>,
 			return false;
 		}
 		SemanticConcept otherConcept = (SemanticConcept) o;
-		HashSet<Integer> synset_intersection = new HashSet<Integer>(this.synsets);
-		synset_intersection.retainAll(otherConcept.synsets);
-		if (!synset_intersection.isEmpty()){
-			return true;
+		ConceptDictionary.Key key = this.entry.key;
+		ConceptDictionary.Key otherKey = otherConcept.entry.key;
+		if (key == otherKey) {
+			return true; // every concept has at least one word
 		}
-		HashSet<String> concept_intersection = new HashSet<String>(this.concepts);
-		concept_intersection.retainAll(otherConcept.concepts);
-		return !concept_intersection.isEmpty();
+		return ConceptDictionary.intersects(key.synsets, otherKey.synsets)
+				|| ConceptDictionary.intersects(key.ids, otherKey.ids);
 	}
 
 	public float similarity(Object o) {
@@ -114,28 +166,20 @@ public class SemanticConcept implements JSONAware, Comparable<SemanticConcept>,
 			return 0;
 		}
 		SemanticConcept otherConcept = (SemanticConcept) o;
-		HashSet<String> concept_intersection = new HashSet<String>(this.concepts);
-		concept_intersection.retainAll(otherConcept.concepts);
-		if (!concept_intersection.isEmpty()) {
+		ConceptDictionary.Key key = this.entry.key;
+		ConceptDictionary.Key otherKey = otherConcept.entry.key;
+		if (key == otherKey || ConceptDictionary.intersects(key.ids, otherKey.ids)) {
 			return 1;
 		}
-		HashSet<Integer> synset_intersection = new HashSet<Integer>(this.synsets);
-		synset_intersection.retainAll(otherConcept.synsets);
-		HashSet<Integer> synset_union = new HashSet<Integer>(this.synsets);
-		synset_union.addAll(otherConcept.synsets);
-		return ((float)synset_intersection.size()) / ((float) synset_union.size());
+		int intersection = ConceptDictionary.intersectionSize(key.synsets, otherKey.synsets);
+		int union = key.synsets.length + otherKey.synsets.length - intersection;
+		// NaN if neither concept has synsets, as before
+		return ((float)intersection) / ((float) union);
 	}
 
 	@Override
 	public String toString() {
-		StringBuilder value_list = new StringBuilder();
-		for (Iterator<String> iter = this.concepts.iterator(); iter.hasNext();) {
-			value_list.append(iter.next());
-			if (iter.hasNext()) {
-				value_list.append("/");
-			}
-		}
-		return value_list.toString();
+		return this.entry.text;
 	}
 
 	@Override
@@ -143,4 +187,17 @@ public class SemanticConcept implements JSONAware, Comparable<SemanticConcept>,
 		return this.toString();
 	}
 
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(this.entry.lemmas);
+		out.writeObject(this.entry.synsets);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		String[] lemmas = (String[]) in.readObject();
+		int[] synsets = (int[]) in.readObject();
+		this.entry = ConceptDictionary.entry(Arrays.asList(lemmas), Ints.asList(synsets));
+	}
+
 }
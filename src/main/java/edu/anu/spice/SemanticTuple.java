@@ -21,6 +21,7 @@
 
 package edu.anu.spice;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 
@@ -89,7 +90,7 @@ public class SemanticTuple implements JSONAware, Comparable<SemanticTuple> {
 		ArrayList<ArrayList<String>> result = new ArrayList<ArrayList<String>>();
 		if (this.tuple.size() == 1) {
 			SemanticConcept object = this.tuple.get(0);
-			for (String objectWord : object.concepts){
+			for (String objectWord : object.getConcepts()){
 				ArrayList<String> tuple = new ArrayList<String>();
 				tuple.add(objectWord);
 				result.add(tuple);
@@ -97,8 +98,8 @@ public class SemanticTuple implements JSONAware, Comparable<SemanticTuple> {
 		} else if (this.tuple.size() == 2) {
 			SemanticConcept object = this.tuple.get(0);
 			SemanticConcept attribute = this.tuple.get(1);
-			for (String objectWord : object.concepts){
-				for (String attrWord : attribute.concepts){
+			for (String objectWord : object.getConcepts()){
+				for (String attrWord : attribute.getConcepts()){
 					ArrayList<String> tuple = new ArrayList<String>();
 					tuple.add(objectWord);
 					tuple.add(attrWord);
@@ -109,9 +110,9 @@ public class SemanticTuple implements JSONAware, Comparable<SemanticTuple> {
 			SemanticConcept src = this.tuple.get(0);
 			SemanticConcept relation = this.tuple.get(1);
 			SemanticConcept tgt = this.tuple.get(2);
-			for (String srcWord : src.concepts){
-				for (String relWord : relation.concepts){
-					for (String tgtWord : tgt.concepts){
+			for (String srcWord : src.getConcepts()){
+				for (String relWord : relation.getConcepts()){
+					for (String tgtWord : tgt.getConcepts()){
 						ArrayList<String> tuple = new ArrayList<String>();
 						tuple.add(srcWord);
 						tuple.add(relWord);
@@ -178,6 +179,17 @@ public class SemanticTuple implements JSONAware, Comparable<SemanticTuple> {
 		return JSONValue.toJSONString(jsonObj);
 	}
 
+	public void writeJSON(JsonStreamWriter writer) throws IOException {
+		writer.beginObject();
+		writer.name("tuple").beginArray();
+		for (SemanticConcept concept: this.tuple){
+			writer.value(concept.toJSONString());
+		}
+		writer.endArray();
+		writer.name("truth_value").value(this.truthValue);
+		writer.endObject();
+	}
+
 	@Override
 	public int compareTo(SemanticTuple o) {
 		return ComparisonChain.start()
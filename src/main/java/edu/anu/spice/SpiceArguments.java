@@ -26,44 +26,105 @@ public class SpiceArguments {
 	public String inputPath;
 	public String outputPath;
 	public String cache;
+	public Boolean compressCache;
+	public String bundle;
 	public int numThreads;
+	public int workers;
+	public String workerHeap;
+	public String parser;
+	public String fastParser;
+	public int routeLength;
 	public Boolean detailed;
 	public Boolean synsets;
 	public Boolean tupleSubsets;
+	public String subsetConfig;
 	public Boolean silent;
+	public Boolean streaming;
+	public int windowSize;
+	public int indent;
+	public int port;
+	public String metricsPath;
+	public String checkpoint;
+	public Boolean resume;
+	public int shard;
+	public int shards;
 
 	SpiceArguments() {
 		inputPath = null;
 		outputPath = null;
 		cache = null;
+		compressCache = false;
+		bundle = null;
 		numThreads = Runtime.getRuntime().availableProcessors();
+		workers = 0;
+		workerHeap = "3G";
+		parser = "pcfg";
+		fastParser = null;
+		routeLength = 15;
 		detailed = false;
 		synsets = true;
 		tupleSubsets = false;
+		subsetConfig = null;
 		silent = false;
+		streaming = false;
+		windowSize = 2000;
+		indent = 2;
+		port = 7077;
+		metricsPath = null;
+		checkpoint = null;
+		resume = false;
+		shard = 1;
+		shards = 1;
 	}
 
 	static void printUsage() {
 		System.err.println("SPICE version 1");
 		System.err.println();
 		System.err.println("Usage: java -Xmx8G -jar spice-*.jar <input.json> [options]");
+		System.err.println("       java -Xmx8G -jar spice-*.jar agreement <input.json> [options]");
+		System.err.println("       java -Xmx8G -jar spice-*.jar benchmark <input.json> [options]");
+		System.err.println("       java -Xmx8G -jar spice-*.jar serve [options]");
+		System.err.println("       java -Xmx8G -jar spice-*.jar compile <refs.json> -bundle <dir> [options]");
+		System.err.println("       java -Xmx8G -jar spice-*.jar merge <partial files> [options]");
 		System.err.println();
 		System.err.println("Options:");
 		System.err.println("-out <outfile>                   Output json scores and tuples data to <outfile>");
 		System.err.println("-cache <dir>                     Set directory for caching reference caption parses");
+		System.err.println("-compressCache                   Deflate large entries written to the cache");
+		System.err.println("-bundle <dir>                    Take reference tuples from the bundle in <dir> (see compile)");
 		System.err.println("-threads <num>                   Defaults to the number of processors");
+		System.err.println("-workers <num>                   Parse captions in <num> worker processes sharing the threads");
+		System.err.println("-workerHeap <size>               Maximum heap of each worker process (default 3G)");
+		System.err.println("-parser <name>                   Parse captions with pcfg (default), lean, sr or nndep");
+		System.err.println("-fastParser <name>               Parse captions longer than -routeLength words with <name>");
+		System.err.println("-routeLength <num>               Caption length in words routed to -fastParser (default 15)");
 		System.err.println("-detailed                        Include propositions for each caption in json output.");
 		System.err.println("-noSynsets                       Disable METEOR-based synonym matching");
 		System.err.println("-subset                       	 Report results in <outfile> for various semantic tuple subsets");
+		System.err.println("-subsetConfig <file>             Report results for the tuple subsets defined in <file>");
 		System.err.println("-silent                       	 Disable stdout results");
+		System.err.println("-indent <num>                    Indentation of json output, 0 for compact (default 2)");
+		System.err.println("-stream                          Score the input in windows, writing results as they complete");
+		System.err.println("-window <num>                    Number of images parsed and scored at a time (default 2000)");
+		System.err.println("-checkpoint <dir>                Save scoring progress to <dir> after each window");
+		System.err.println("-resume                          Continue from the checkpoint in -checkpoint <dir>");
+		System.err.println("-shard <k>/<N>                   Score every Nth image from the kth, writing a partial file to <outfile>");
+		System.err.println("-port <num>                      Local port to listen on with serve (default 7077)");
+		System.err.println("-metrics <file>                  Output json parsing, cache and scoring metrics to <file>");
 		System.err.println();
 		System.err.println("See README file for additional information and input format details");
 	}
 
 	SpiceArguments(String[] args) {
+		this(args[0], args, 1);
+	}
+
+	/**
+	 * Parses the options from args[curArg] onwards.
+	 */
+	SpiceArguments(String inputPath, String[] args, int curArg) {
 		this();
-		this.inputPath = args[0];
-		int curArg = 1;
+		this.inputPath = inputPath;
 		while (curArg < args.length) {
 			if (args[curArg].equals("-out")) {
 				this.outputPath = args[curArg + 1];
@@ -71,9 +132,30 @@ public class SpiceArguments {
 			} else if (args[curArg].equals("-cache")) {
 				this.cache = args[curArg + 1];
 				curArg += 2;				
+			} else if (args[curArg].equals("-compressCache")) {
+				this.compressCache = true;
+				curArg += 1;
+			} else if (args[curArg].equals("-bundle")) {
+				this.bundle = args[curArg + 1];
+				curArg += 2;
 			} else if (args[curArg].equals("-threads")) {
 				this.numThreads = Integer.parseInt(args[curArg + 1]);
 				curArg += 2;
+			} else if (args[curArg].equals("-workers")) {
+				this.workers = Integer.parseInt(args[curArg + 1]);
+				curArg += 2;
+			} else if (args[curArg].equals("-workerHeap")) {
+				this.workerHeap = args[curArg + 1];
+				curArg += 2;
+			} else if (args[curArg].equals("-parser")) {
+				this.parser = checkParser(args[curArg + 1]);
+				curArg += 2;
+			} else if (args[curArg].equals("-fastParser")) {
+				this.fastParser = checkParser(args[curArg + 1]);
+				curArg += 2;
+			} else if (args[curArg].equals("-routeLength")) {
+				this.routeLength = Integer.parseInt(args[curArg + 1]);
+				curArg += 2;
 			} else if (args[curArg].equals("-detailed")) {
 				this.detailed = true;
 				curArg += 1;
@@ -83,9 +165,48 @@ public class SpiceArguments {
 			} else if (args[curArg].equals("-subset")) {
 				this.tupleSubsets = true;
 				curArg += 1;
+			} else if (args[curArg].equals("-subsetConfig")) {
+				this.tupleSubsets = true;
+				this.subsetConfig = args[curArg + 1];
+				curArg += 2;
 			} else if (args[curArg].equals("-silent")) {
 				this.silent = true;
 				curArg += 1;
+			} else if (args[curArg].equals("-indent")) {
+				this.indent = Integer.parseInt(args[curArg + 1]);
+				curArg += 2;
+			} else if (args[curArg].equals("-stream")) {
+				this.streaming = true;
+				curArg += 1;
+			} else if (args[curArg].equals("-window")) {
+				this.windowSize = Integer.parseInt(args[curArg + 1]);
+				if (this.windowSize < 1) {
+					System.err.println("Invalid window size " + this.windowSize + ", expected at least 1");
+					System.exit(1);
+				}
+				curArg += 2;
+			} else if (args[curArg].equals("-port")) {
+				this.port = Integer.parseInt(args[curArg + 1]);
+				curArg += 2;
+			} else if (args[curArg].equals("-checkpoint")) {
+				this.checkpoint = args[curArg + 1];
+				curArg += 2;
+			} else if (args[curArg].equals("-resume")) {
+				this.resume = true;
+				curArg += 1;
+			} else if (args[curArg].equals("-shard")) {
+				try {
+					int[] shard = PartialStats.parseShard(args[curArg + 1]);
+					this.shard = shard[0];
+					this.shards = shard[1];
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					System.exit(1);
+				}
+				curArg += 2;
+			} else if (args[curArg].equals("-metrics")) {
+				this.metricsPath = args[curArg + 1];
+				curArg += 2;
 			} else {
 				System.err.println("Unknown option \"" + args[curArg] + "\"");
 				System.exit(1);
@@ -93,4 +214,14 @@ public class SpiceArguments {
 		}
 	}
 
+	private static String checkParser(String name) {
+		try {
+			return Annotator.Backend.forName(name).toString();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.io.CharStreams;
+
+import edu.anu.spice.SpiceScorer.InputWindow;
+import edu.anu.spice.StageProfile.Stage;
+
+/**
+ * Scores an input file twice, first with an empty tuple cache and then with
+ * the cache it filled, and reports the wall time, garbage collection time and
+ * heap high-water mark of each stage of the evaluation. Each run starts from a
+ * new parser, so the synonym dictionary is loaded in both and the parser models
+ * in any run that parses captions. Windows are processed one stage at a time,
+ * without the overlap of scoreBatch, so stage timings add up to the wall time.
+ */
+public class SpiceBenchmark {
+
+	/**
+	 * The measurements of one run.
+	 */
+	public static class Run {
+		public final String name;
+		public final StageProfile profile;
+		public int images;
+		public double seconds;
+		public long gcMillis;
+		public long peakHeap;
+
+		public Run(String name) {
+			this.name = name;
+			this.profile = new StageProfile();
+		}
+
+		public void writeJSON(JsonStreamWriter writer) throws IOException {
+			writer.beginObject();
+			writer.name("name").value(this.name);
+			writer.name("images").value(this.images);
+			writer.name("seconds").value(this.seconds);
+			writer.name("images_per_second").value(this.seconds > 0 ? this.images / this.seconds : Double.NaN);
+			writer.name("gc_seconds").value(this.gcMillis / 1000.0);
+			writer.name("peak_heap_bytes").value(this.peakHeap);
+			writer.name("stages");
+			this.profile.writeJSON(writer);
+			writer.endObject();
+		}
+
+		@Override
+		public String toString() {
+			String output = String.format("********  %s cache  ********\n", this.name);
+			output += String.format("  images:\t%d\n", this.images);
+			output += String.format("  wall time:\t%.2fs\n", this.seconds);
+			output += String.format("  gc time:\t%.2fs\n", this.gcMillis / 1000.0);
+			output += String.format("  peak heap:\t%.1f MB\n\n", this.peakHeap / 1e6);
+			return output + this.profile.toString();
+		}
+	}
+
+	public static void run(SpiceArguments args) throws IOException, ParseException {
+		File cacheDir = Files.createTempDirectory("spice-benchmark").toFile();
+		List<Run> runs = new ArrayList<Run>();
+		String parser = null;
+		try {
+			for (String name : new String[] { "cold", "warm" }) {
+				System.err.println(String.format("Benchmarking %s with a %s cache", args.inputPath, name));
+				Run run = new Run(name);
+				parser = measure(args, cacheDir.getPath(), run);
+				runs.add(run);
+			}
+		} finally {
+			deleteRecursively(cacheDir);
+		}
+
+		if (!args.silent) {
+			for (Run run : runs) {
+				System.out.println(run.toString());
+			}
+		}
+		if (args.outputPath != null) {
+			JsonStreamWriter writer = SpiceScorer.openOutput(args);
+			writer.beginObject();
+			writer.name("input").value(args.inputPath);
+			writer.name("parser").value(parser);
+			writer.name("threads").value(args.numThreads);
+			writer.name("window").value(args.windowSize);
+			writer.name("runs").beginArray();
+			for (Run run : runs) {
+				run.writeJSON(writer);
+			}
+			writer.endArray();
+			writer.endObject();
+			writer.close();
+		}
+		if (args.metricsPath != null) {
+			SpiceMetrics.get().write(args.metricsPath, args.indent);
+		}
+	}
+
+	/**
+	 * Scores the input once with the given cache, returning the parser description.
+	 */
+	protected static String measure(SpiceArguments args, String cacheDir, Run run) throws IOException, ParseException {
+		StageProfile profile = run.profile;
+		System.gc();
+		long startGc = profile.gcMillis();
+		Stopwatch timer = Stopwatch.createStarted();
+
+		Annotator annotator = new Annotator(args);
+		SpiceParser parser;
+		// Includes opening the cache, which is negligible in comparison
+		try (StageProfile.Timer stage = profile.start(Stage.SYNONYM_LOAD)) {
+			parser = new SpiceParser(cacheDir, args.numThreads, args.synsets, args.compressCache, annotator);
+		}
+		parser.setProfile(profile);
+		SpiceStats stats = new SpiceStats(SpiceScorer.categories(args), args.detailed);
+		JsonStreamWriter discard = new JsonStreamWriter(CharStreams.nullWriter(), args.indent);
+		discard.beginArray();
+		ForkJoinPool scoringPool = args.numThreads > 1 ? new ForkJoinPool(args.numThreads) : null;
+		SpiceInputReader input = new SpiceInputReader(args.inputPath);
+		try {
+			while (true) {
+				InputWindow window = new InputWindow();
+				try (StageProfile.Timer stage = profile.start(Stage.JSON_LOAD)) {
+					JSONObject item;
+					while (window.imageIds.size() < args.windowSize && (item = input.next()) != null) {
+						window.add(item);
+					}
+					stage.count(window.imageIds.size());
+				}
+				if (window.imageIds.isEmpty()) {
+					break;
+				}
+				window.captionTuples = parser.loadTuples(window.distinctCaptions());
+
+				List<SceneGraph> refSgs, testSgs;
+				try (StageProfile.Timer stage = profile.start(Stage.GRAPH_BUILD)) {
+					refSgs = parser.buildSceneGraphs(window.refCaptions, window.refChunks, window.captionTuples);
+					testSgs = parser.buildSceneGraphs(window.testCaptions, window.captionTuples);
+					stage.count(window.refCaptions.size() + window.testCaptions.size());
+				}
+				try (StageProfile.Timer stage = profile.start(Stage.SCORING)) {
+					stats.scoreAll(window.imageIds, testSgs, refSgs, args.synsets, scoringPool);
+					stage.count(window.imageIds.size());
+				}
+				try (StageProfile.Timer stage = profile.start(Stage.OUTPUT)) {
+					// Serialized as with -stream, but not written anywhere
+					stats.writeResults(discard);
+					discard.flush();
+					stage.count(window.imageIds.size());
+				}
+				stats.clearResults();
+			}
+		} finally {
+			if (scoringPool != null) {
+				scoringPool.shutdownNow();
+			}
+			input.close();
+			parser.close();
+		}
+
+		run.seconds = timer.stop().elapsed(TimeUnit.NANOSECONDS) / 1e9;
+		run.images = stats.numImages();
+		run.gcMillis = profile.gcMillis() - startGc;
+		// Peaks are reset as each stage starts
+		run.peakHeap = profile.peakHeap();
+		for (Stage stage : Stage.values()) {
+			run.peakHeap = Math.max(run.peakHeap, profile.get(stage).peakHeap);
+		}
+		return annotator.description();
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		if (!file.delete()) {
+			System.err.println("Could not delete " + file.getPath());
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reads the items of a json input file (an array of objects containing
+ * image_id, test and refs fields) one at a time, so that only the current
+ * item is ever held in memory.
+ */
+public class SpiceInputReader implements ContentHandler, Closeable {
+
+	protected Reader reader;
+	protected JSONParser parser;
+	protected Deque<Object> containers;
+	protected Deque<String> keys;
+	protected JSONObject item;
+	protected boolean started;
+	protected boolean finished;
+
+	public SpiceInputReader(String inputPath) throws IOException {
+		this(new BufferedReader(new FileReader(inputPath)));
+	}
+
+	public SpiceInputReader(Reader reader) {
+		this.reader = reader;
+		this.parser = new JSONParser();
+		this.containers = new ArrayDeque<Object>();
+		this.keys = new ArrayDeque<String>();
+		this.item = null;
+		this.started = false;
+		this.finished = false;
+	}
+
+	/**
+	 * Returns the next item in the input array, or null at the end of the input.
+	 */
+	public JSONObject next() throws IOException, ParseException {
+		this.item = null;
+		if (!this.finished) {
+			// The parser pauses whenever the handler returns false
+			this.parser.parse(this.reader, this, this.started);
+			this.started = true;
+		}
+		return this.item;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.reader.close();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addValue(Object value) {
+		Object container = this.containers.peek();
+		if (container instanceof JSONArray) {
+			((JSONArray) container).add(value);
+		} else if (container instanceof JSONObject) {
+			((JSONObject) container).put(this.keys.peek(), value);
+		}
+	}
+
+	/**
+	 * Checks that the input is an array, and each of its items an object.
+	 */
+	private void checkValue(Object value) throws IOException {
+		if (this.containers.isEmpty() && !(value instanceof JSONArray)) {
+			throw new IOException("Input must be a json array of items");
+		}
+		if (this.containers.size() == 1 && !(value instanceof JSONObject)) {
+			throw new IOException("Input items must be json objects, found " + value);
+		}
+	}
+
+	private boolean endContainer() {
+		Object container = this.containers.pop();
+		if (this.containers.size() == 1 && container instanceof JSONObject) {
+			// Completed an item of the top-level array, hand it back without
+			// keeping a reference in the array itself
+			this.item = (JSONObject) container;
+			return false;
+		}
+		if (!this.containers.isEmpty()) {
+			this.addValue(container);
+		}
+		return true;
+	}
+
+	@Override
+	public void startJSON() throws ParseException, IOException {
+		this.containers.clear();
+		this.keys.clear();
+	}
+
+	@Override
+	public void endJSON() throws ParseException, IOException {
+		this.finished = true;
+	}
+
+	@Override
+	public boolean startObject() throws ParseException, IOException {
+		JSONObject object = new JSONObject();
+		this.checkValue(object);
+		this.containers.push(object);
+		return true;
+	}
+
+	@Override
+	public boolean endObject() throws ParseException, IOException {
+		return this.endContainer();
+	}
+
+	@Override
+	public boolean startObjectEntry(String key) throws ParseException, IOException {
+		this.keys.push(key);
+		return true;
+	}
+
+	@Override
+	public boolean endObjectEntry() throws ParseException, IOException {
+		this.keys.pop();
+		return true;
+	}
+
+	@Override
+	public boolean startArray() throws ParseException, IOException {
+		JSONArray array = new JSONArray();
+		this.checkValue(array);
+		this.containers.push(array);
+		return true;
+	}
+
+	@Override
+	public boolean endArray() throws ParseException, IOException {
+		return this.endContainer();
+	}
+
+	@Override
+	public boolean primitive(Object value) throws ParseException, IOException {
+		this.checkValue(value);
+		this.addValue(value);
+		return true;
+	}
+
+}
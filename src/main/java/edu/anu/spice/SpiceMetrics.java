@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Process-wide counters and histograms of caption parsing, the tuple cache,
+ * scene graph building and scoring, used to tell which of them a slow run is
+ * bound by. Recording is lock-free and cheap enough to stay on in production.
+ *
+ * Metrics are published over JMX as edu.anu.spice:type=Metrics, and written as
+ * json with -metrics at the end of a run, or on demand through the dumpJSON
+ * operation or a "metrics" request to the server.
+ */
+public class SpiceMetrics implements DynamicMBean {
+
+	public static final String OBJECT_NAME = "edu.anu.spice:type=Metrics";
+
+	public enum Counter {
+		CACHE_HITS, CACHE_MISSES, CACHE_WRITES, CAPTIONS_ANNOTATED, CAPTIONS_EXTRACTED, TUPLES_EXTRACTED,
+		GRAPHS_BUILT, IMAGES_SCORED, SYNSET_CACHE_HITS, SYNSET_CACHE_MISSES;
+
+		public String key() {
+			return this.name().toLowerCase();
+		}
+	}
+
+	public enum Histogram {
+		/** Time to annotate one batch of captions with one parser, excluding model loading */
+		ANNOTATION_BATCH_MICROS,
+		/** Batch annotation time divided by its captions, as CoreNLP annotates them concurrently */
+		ANNOTATION_MICROS_PER_CAPTION,
+		/** Time spent waiting in parseNextBatch for a batch to be annotated */
+		ANNOTATION_WAIT_MICROS,
+		EXTRACTION_MICROS,
+		TUPLES_PER_CAPTION,
+		CACHE_READ_MICROS,
+		CACHE_WRITE_MICROS,
+		GRAPH_BUILD_MICROS,
+		GRAPH_NODES,
+		SCORE_MICROS,
+		TEST_TUPLES,
+		REF_TUPLES;
+
+		public String key() {
+			return this.name().toLowerCase();
+		}
+	}
+
+	/**
+	 * A histogram of non-negative values in log-linear buckets, each within
+	 * 1/8 of its lower bound, so percentiles are reported to within 12.5%.
+	 */
+	public static class Distribution {
+		protected static final int SUB_BITS = 3;
+		protected static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+		protected final AtomicLongArray buckets;
+		protected final LongAdder count;
+		protected final LongAdder sum;
+		protected final LongAccumulator max;
+
+		public Distribution() {
+			this.buckets = new AtomicLongArray((64 - SUB_BITS + 1) << SUB_BITS);
+			this.count = new LongAdder();
+			this.sum = new LongAdder();
+			this.max = new LongAccumulator(Math::max, 0);
+		}
+
+		public void record(long value) {
+			value = Math.max(0, value);
+			this.buckets.incrementAndGet(index(value));
+			this.count.increment();
+			this.sum.add(value);
+			this.max.accumulate(value);
+		}
+
+		protected static int index(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+		}
+
+		/**
+		 * The largest value that falls in a bucket.
+		 */
+		protected static long upperBound(int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+			int exponent = (index >>> SUB_BITS) + SUB_BITS - 1;
+			if (exponent == 63) {
+				return Long.MAX_VALUE;
+			}
+			long sub = index & (SUB_BUCKETS - 1);
+			return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+		}
+
+		public long count() {
+			return this.count.sum();
+		}
+
+		public double mean() {
+			long count = this.count();
+			return count > 0 ? (double) this.sum.sum() / count : Double.NaN;
+		}
+
+		public long sum() {
+			return this.sum.sum();
+		}
+
+		public long max() {
+			return this.max.get();
+		}
+
+		/**
+		 * An upper bound of the given quantile (e.g. 0.99) of the values recorded.
+		 */
+		public long percentile(double quantile) {
+			long total = 0;
+			for (int i = 0; i < this.buckets.length(); ++i) {
+				total += this.buckets.get(i);
+			}
+			long rank = Math.max(1, (long) Math.ceil(quantile * total));
+			long seen = 0;
+			for (int i = 0; i < this.buckets.length(); ++i) {
+				seen += this.buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(upperBound(i), this.max());
+				}
+			}
+			return this.max();
+		}
+
+		public void reset() {
+			for (int i = 0; i < this.buckets.length(); ++i) {
+				this.buckets.set(i, 0);
+			}
+			this.count.reset();
+			this.sum.reset();
+			this.max.reset();
+		}
+
+		/**
+		 * Writes the sum, max and non-empty buckets, to be added to another distribution with merge.
+		 */
+		public void writeRaw(JsonStreamWriter writer) throws IOException {
+			writer.beginObject();
+			writer.name("sum").value(this.sum());
+			writer.name("max").value(this.max());
+			writer.name("buckets").beginArray();
+			for (int i = 0; i < this.buckets.length(); ++i) {
+				long n = this.buckets.get(i);
+				if (n > 0) {
+					writer.beginArray().value(i).value(n).endArray();
+				}
+			}
+			writer.endArray();
+			writer.endObject();
+		}
+
+		/**
+		 * Adds the values of a distribution written by writeRaw.
+		 */
+		public void merge(JSONObject raw) {
+			for (Object bucket : (JSONArray) raw.get("buckets")) {
+				int index = ((Number) ((JSONArray) bucket).get(0)).intValue();
+				long n = ((Number) ((JSONArray) bucket).get(1)).longValue();
+				this.buckets.addAndGet(index, n);
+				this.count.add(n);
+			}
+			this.sum.add(((Number) raw.get("sum")).longValue());
+			this.max.accumulate(((Number) raw.get("max")).longValue());
+		}
+
+		public void writeJSON(JsonStreamWriter writer) throws IOException {
+			writer.beginObject();
+			writer.name("count").value(this.count());
+			writer.name("mean").value(this.mean());
+			writer.name("p50").value(this.percentile(0.5));
+			writer.name("p90").value(this.percentile(0.9));
+			writer.name("p99").value(this.percentile(0.99));
+			writer.name("max").value(this.max());
+			writer.endObject();
+		}
+	}
+
+	protected static final String[] SUMMARIES = { "count", "mean", "p50", "p90", "p99", "max" };
+
+	protected static final SpiceMetrics metrics = new SpiceMetrics();
+	static {
+		metrics.register();
+	}
+
+	protected final LongAdder[] counters;
+	protected final Distribution[] histograms;
+	protected volatile long startNanos;
+
+	protected SpiceMetrics() {
+		this.counters = new LongAdder[Counter.values().length];
+		for (int i = 0; i < this.counters.length; ++i) {
+			this.counters[i] = new LongAdder();
+		}
+		this.histograms = new Distribution[Histogram.values().length];
+		for (int i = 0; i < this.histograms.length; ++i) {
+			this.histograms[i] = new Distribution();
+		}
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * The metrics of this process.
+	 */
+	public static SpiceMetrics get() {
+		return metrics;
+	}
+
+	protected void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		} catch (JMException | SecurityException e) {
+			System.err.println("Could not publish metrics over JMX: " + e.toString());
+		}
+	}
+
+	public void add(Counter counter, long value) {
+		this.counters[counter.ordinal()].add(value);
+	}
+
+	public void record(Histogram histogram, long value) {
+		this.histograms[histogram.ordinal()].record(value);
+	}
+
+	/**
+	 * Records the time since startNanos, a System.nanoTime() reading, in microseconds.
+	 */
+	public void recordMicros(Histogram histogram, long startNanos) {
+		this.record(histogram, (System.nanoTime() - startNanos) / 1000);
+	}
+
+	public long count(Counter counter) {
+		return this.counters[counter.ordinal()].sum();
+	}
+
+	public Distribution distribution(Histogram histogram) {
+		return this.histograms[histogram.ordinal()];
+	}
+
+	public double uptimeSeconds() {
+		return (System.nanoTime() - this.startNanos) / 1e9;
+	}
+
+	/**
+	 * The fraction of caption lookups answered by the cache.
+	 */
+	public double cacheHitRatio() {
+		long hits = this.count(Counter.CACHE_HITS);
+		long lookups = hits + this.count(Counter.CACHE_MISSES);
+		return lookups > 0 ? (double) hits / lookups : Double.NaN;
+	}
+
+	/**
+	 * Captions annotated per second of annotation time.
+	 */
+	public double captionsPerSecond() {
+		double seconds = this.distribution(Histogram.ANNOTATION_BATCH_MICROS).sum() / 1e6;
+		return seconds > 0 ? this.count(Counter.CAPTIONS_ANNOTATED) / seconds : Double.NaN;
+	}
+
+	public void reset() {
+		for (LongAdder counter : this.counters) {
+			counter.reset();
+		}
+		for (Distribution histogram : this.histograms) {
+			histogram.reset();
+		}
+		this.startNanos = System.nanoTime();
+	}
+
+	public void writeJSON(JsonStreamWriter writer) throws IOException {
+		writer.beginObject();
+		writer.name("uptime_seconds").value(this.uptimeSeconds());
+		writer.name("cache_hit_ratio").value(this.cacheHitRatio());
+		writer.name("captions_per_second").value(this.captionsPerSecond());
+		writer.name("counters").beginObject();
+		for (Counter counter : Counter.values()) {
+			writer.name(counter.key()).value(this.count(counter));
+		}
+		writer.endObject();
+		writer.name("histograms").beginObject();
+		for (Histogram histogram : Histogram.values()) {
+			writer.name(histogram.key());
+			this.distribution(histogram).writeJSON(writer);
+		}
+		writer.endObject();
+		writer.endObject();
+	}
+
+	/**
+	 * Writes the counters and histograms in full, e.g. for a parse worker to
+	 * report them to the main process, which adds them to its own with merge.
+	 */
+	public void writeRaw(JsonStreamWriter writer) throws IOException {
+		writer.beginObject();
+		writer.name("counters").beginObject();
+		for (Counter counter : Counter.values()) {
+			writer.name(counter.key()).value(this.count(counter));
+		}
+		writer.endObject();
+		writer.name("histograms").beginObject();
+		for (Histogram histogram : Histogram.values()) {
+			writer.name(histogram.key());
+			this.distribution(histogram).writeRaw(writer);
+		}
+		writer.endObject();
+		writer.endObject();
+	}
+
+	/**
+	 * Adds metrics written by writeRaw to these.
+	 */
+	public void merge(JSONObject raw) {
+		JSONObject counters = (JSONObject) raw.get("counters");
+		for (Counter counter : Counter.values()) {
+			Number value = (Number) counters.get(counter.key());
+			if (value != null) {
+				this.add(counter, value.longValue());
+			}
+		}
+		JSONObject histograms = (JSONObject) raw.get("histograms");
+		for (Histogram histogram : Histogram.values()) {
+			JSONObject value = (JSONObject) histograms.get(histogram.key());
+			if (value != null) {
+				this.distribution(histogram).merge(value);
+			}
+		}
+	}
+
+	/**
+	 * Writes the metrics to a json file, e.g. the one given with -metrics.
+	 */
+	public void write(String path, int indent) throws IOException {
+		JsonStreamWriter writer = new JsonStreamWriter(new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(path), StandardCharsets.UTF_8)), indent);
+		this.writeJSON(writer);
+		writer.close();
+	}
+
+	public String toJSONString() {
+		StringWriter output = new StringWriter();
+		try {
+			JsonStreamWriter writer = new JsonStreamWriter(output, 0);
+			this.writeJSON(writer);
+			writer.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e); // not thrown by a StringWriter
+		}
+		return output.toString();
+	}
+
+	// JMX attributes are the counters, derived rates and the summaries of each
+	// histogram, e.g. "score_micros_p99"
+
+	protected Object summary(Distribution histogram, String summary) {
+		switch (summary) {
+		case "count":
+			return histogram.count();
+		case "mean":
+			return histogram.mean();
+		case "p50":
+			return histogram.percentile(0.5);
+		case "p90":
+			return histogram.percentile(0.9);
+		case "p99":
+			return histogram.percentile(0.99);
+		default:
+			return histogram.max();
+		}
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		switch (attribute) {
+		case "uptime_seconds":
+			return this.uptimeSeconds();
+		case "cache_hit_ratio":
+			return this.cacheHitRatio();
+		case "captions_per_second":
+			return this.captionsPerSecond();
+		}
+		for (Counter counter : Counter.values()) {
+			if (counter.key().equals(attribute)) {
+				return this.count(counter);
+			}
+		}
+		for (Histogram histogram : Histogram.values()) {
+			for (String summary : SUMMARIES) {
+				if (attribute.equals(histogram.key() + "_" + summary)) {
+					return this.summary(this.distribution(histogram), summary);
+				}
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, this.getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// omitted, as the interface requires
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		switch (actionName) {
+		case "dumpJSON":
+			return this.toJSONString();
+		case "reset":
+			this.reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		attributes.add(attribute("uptime_seconds", "double", "Seconds since the metrics were started or reset"));
+		attributes.add(attribute("cache_hit_ratio", "double", "Fraction of caption lookups found in the cache"));
+		attributes.add(attribute("captions_per_second", "double", "Captions annotated per second of annotation"));
+		for (Counter counter : Counter.values()) {
+			attributes.add(attribute(counter.key(), "long", counter.key()));
+		}
+		for (Histogram histogram : Histogram.values()) {
+			for (String summary : SUMMARIES) {
+				attributes.add(attribute(histogram.key() + "_" + summary, summary.equals("mean") ? "double" : "long",
+						summary + " of " + histogram.key()));
+			}
+		}
+		MBeanOperationInfo[] operations = {
+				new MBeanOperationInfo("dumpJSON", "All metrics as json", new MBeanParameterInfo[0], "java.lang.String",
+						MBeanOperationInfo.INFO),
+				new MBeanOperationInfo("reset", "Resets all metrics", new MBeanParameterInfo[0], "void",
+						MBeanOperationInfo.ACTION) };
+		return new MBeanInfo(this.getClass().getName(), "SPICE parsing, cache and scoring metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, operations, null);
+	}
+
+	private static MBeanAttributeInfo attribute(String name, String type, String description) {
+		return new MBeanAttributeInfo(name, type, description, true, false, false);
+	}
+
+}
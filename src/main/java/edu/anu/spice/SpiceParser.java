@@ -24,13 +24,19 @@ package edu.anu.spice;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 import edu.cmu.meteor.aligner.SynonymDictionary;
 import edu.cmu.meteor.util.Constants;
@@ -166,16 +172,36 @@ public class SpiceParser {
 		}
 	}
 
-	protected final SynonymDictionary synonyms;
+	protected final SynsetCache synsets;
 	protected Annotator annotator;
 	protected LmdbTupleDB db;
+	protected ForkJoinPool graphBuilders;
+	protected StageProfile profile;
+	protected ParseWorkers workers;
 	Boolean mergeSimilarNodes;
 
 	public SpiceParser(String dbPath, int numThreads, Boolean mergeSimilarNodes) {
+		this(dbPath, numThreads, mergeSimilarNodes, false);
+	}
+
+	public SpiceParser(String dbPath, int numThreads, Boolean mergeSimilarNodes, boolean compressCache) {
+		this(dbPath, numThreads, mergeSimilarNodes, compressCache, 
+				new Annotator(numThreads, Annotator.DEFAULT_BATCH_SIZE));
+	}
+
+	/**
+	 * Parses captions with the given annotator, which is closed with this parser.
+	 */
+	public SpiceParser(String dbPath, int numThreads, Boolean mergeSimilarNodes, boolean compressCache,
+			Annotator annotator) {
 		this.mergeSimilarNodes = mergeSimilarNodes;
-		this.annotator = new Annotator(numThreads, 10000);
+		this.annotator = annotator;
+		this.profile = StageProfile.DISABLED;
+		this.graphBuilders = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
 		if (dbPath != null){
-			this.db = new LmdbTupleDB(dbPath);
+			// Tuples from other parsers are cached separately
+			String tuplesName = annotator.isDefault() ? "tuples" : "tuples-" + annotator.description();
+			this.db = new LmdbTupleDB(dbPath, compressCache, tuplesName);
 		} else {
 			this.db = null;
 		}
@@ -184,39 +210,108 @@ public class SpiceParser {
 			URL excFileURL = new URL(synDirURL.toString() + "/english.exceptions");
 			URL synFileURL = new URL(synDirURL.toString() + "/english.synsets");
 			URL relFileURL = new URL(synDirURL.toString() + "/english.relations");
-			this.synonyms = new SynonymDictionary(excFileURL, synFileURL, relFileURL);
+			this.synsets = new SynsetCache(new SynonymDictionary(excFileURL, synFileURL, relFileURL));
 		} catch (IOException ex) {
 			throw new RuntimeException("Error: Synonym dictionary could not be loaded (" + synDirURL.toString() + ")");
 		}
 	}
 
+	/**
+	 * Only extracts tuples, without the synonym dictionary needed to build scene graphs.
+	 */
+	SpiceParser(Annotator annotator) {
+		this.mergeSimilarNodes = false;
+		this.annotator = annotator;
+		this.profile = StageProfile.DISABLED;
+		this.graphBuilders = null;
+		this.db = null;
+		this.synsets = null;
+	}
+
+	/**
+	 * Parses captions with the given worker processes instead of the annotator.
+	 * The workers are closed with this parser.
+	 */
+	public void setWorkers(ParseWorkers workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * Records the stages of tuple extraction, including those of the annotator, in the given profile.
+	 */
+	public void setProfile(StageProfile profile) {
+		this.profile = profile;
+		this.annotator.setProfile(profile);
+	}
+
+	/**
+	 * Releases the parsing threads and cache environment held by this parser.
+	 */
+	public void close() {
+		this.annotator.close();
+		if (this.workers != null){
+			this.workers.close();
+		}
+		if (this.graphBuilders != null){
+			this.graphBuilders.shutdownNow();
+		}
+		if (this.db != null){
+			this.db.close();
+		}
+	}
+
 	protected Map<String, ArrayList<ArrayList<String>>> loadTuplesFromDB(List<String> input, boolean cache){
 		// Load any pre-processed captions from the database
-		Map<String, ArrayList<ArrayList<String>>> captionTuples = this.db.getTransaction(input);
-		ArrayList<String> unparsed = new ArrayList<String>();
+		Map<String, ArrayList<ArrayList<String>>> captionTuples;
+		try (StageProfile.Timer timer = this.profile.start(StageProfile.Stage.CACHE_IO)) {
+			timer.count(input.size());
+			captionTuples = this.db.getTransaction(input);
+		}
+		// Each distinct caption missing from the database is parsed once
+		LinkedHashSet<String> missing = new LinkedHashSet<String>();
 		for (String caption: input){
 			if (!captionTuples.containsKey(caption)){
-				unparsed.add(caption);
+				missing.add(caption);
 			}
-		}	
+		}
+		ArrayList<String> unparsed = new ArrayList<String>(missing);
 		// Parse and save captions not in database
-		if (!unparsed.isEmpty()){
-			this.annotator.setInput(unparsed);
+		if (!unparsed.isEmpty() && this.workers != null){
+			try (StageProfile.Timer extraction = this.profile.start(StageProfile.Stage.TUPLE_EXTRACTION)) {
+				extraction.count(unparsed.size());
+				this.workers.parse(unparsed, newTuples -> {
+					if (cache){
+						try (StageProfile.Timer timer = this.profile.start(StageProfile.Stage.CACHE_IO)) {
+							this.db.putTransaction(newTuples);
+						}
+					}
+					captionTuples.putAll(newTuples);
+				});
+			}
+		} else if (!unparsed.isEmpty()){
 			Map<String, ArrayList<ArrayList<String>>> newTuples = new HashMap<String, ArrayList<ArrayList<String>>>();
 			Iterator<String> caption = unparsed.iterator();
-			while (caption.hasNext()){
-				List<Annotation> anns = this.annotator.parseNextBatch();
-				assert (!anns.isEmpty());
-				Iterator<Annotation> ann = anns.iterator();
-				while (caption.hasNext() && ann.hasNext()) {
-					ProposedTuples tuples = this.parseAnnotation(ann.next());
-					newTuples.put(caption.next(), tuples.tuples);
-				}
-				if (cache){
-					this.db.putTransaction(newTuples);
+			// Annotation and cache writes are timed as stages of their own
+			try (StageProfile.Timer extraction = this.profile.start(StageProfile.Stage.TUPLE_EXTRACTION)) {
+				extraction.count(unparsed.size());
+				this.annotator.setInput(unparsed);
+				while (caption.hasNext()){
+					List<Annotation> anns = this.annotator.parseNextBatch();
+					assert (!anns.isEmpty());
+					ListIterator<Annotation> ann = anns.listIterator();
+					while (caption.hasNext() && ann.hasNext()) {
+						ProposedTuples tuples = this.parseAnnotation(ann.next());
+						ann.set(null); // Release each annotation once its tuples are extracted
+						newTuples.put(caption.next(), tuples.tuples);
+					}
+					if (cache){
+						try (StageProfile.Timer timer = this.profile.start(StageProfile.Stage.CACHE_IO)) {
+							this.db.putTransaction(newTuples);
+						}
+					}
+					captionTuples.putAll(newTuples);
+					newTuples.clear();
 				}
-				captionTuples.putAll(newTuples);
-				newTuples.clear();
 			}
 		}
 		return captionTuples;
@@ -224,15 +319,25 @@ public class SpiceParser {
 
 	protected Map<String, ArrayList<ArrayList<String>>> generateTuples(List<String> input){
 		Map<String, ArrayList<ArrayList<String>>> captionTuples = new HashMap<String, ArrayList<ArrayList<String>>>();
-		this.annotator.setInput(input);
-		Iterator<String> caption = input.iterator();
-		while(caption.hasNext()){
-			List<Annotation> anns = this.annotator.parseNextBatch();
-			assert (!anns.isEmpty());
-			Iterator<Annotation> ann = anns.iterator();
-			while (caption.hasNext() && ann.hasNext()) {
-				ProposedTuples tuples = this.parseAnnotation(ann.next());
-				captionTuples.put(caption.next(), tuples.tuples);
+		// Each distinct caption is parsed once
+		input = new ArrayList<String>(new LinkedHashSet<String>(input));
+		try (StageProfile.Timer extraction = this.profile.start(StageProfile.Stage.TUPLE_EXTRACTION)) {
+			extraction.count(input.size());
+			if (this.workers != null){
+				this.workers.parse(input, captionTuples::putAll);
+				return captionTuples;
+			}
+			this.annotator.setInput(input);
+			Iterator<String> caption = input.iterator();
+			while(caption.hasNext()){
+				List<Annotation> anns = this.annotator.parseNextBatch();
+				assert (!anns.isEmpty());
+				ListIterator<Annotation> ann = anns.listIterator();
+				while (caption.hasNext() && ann.hasNext()) {
+					ProposedTuples tuples = this.parseAnnotation(ann.next());
+					ann.set(null); // Release each annotation once its tuples are extracted
+					captionTuples.put(caption.next(), tuples.tuples);
+				}
 			}
 		}
 		return captionTuples;
@@ -249,40 +354,73 @@ public class SpiceParser {
 	public List<SceneGraph> parseCaptions(List<String> input, List<Integer> chunks) {
 		// Load any pre-processed captions from the database
 		Map<String, ArrayList<ArrayList<String>>> captionTuples = this.loadTuples(input);
-
-		// Build scene graphs from tuples (with merging etc)
-		List<SceneGraph> sgs = new ArrayList<SceneGraph>();
-		Iterator<String> it = input.iterator();
-		int captionCount;
-		for (Integer chunk: chunks){
-			captionCount = 0;
-			SceneGraph scene = new SceneGraph(synonyms, this.mergeSimilarNodes);
-			while(it.hasNext() && captionCount<chunk){
-				ArrayList<ArrayList<String>> tuples = captionTuples.get(it.next());
-				assert(tuples != null);
-				for (ArrayList<String> tuple: tuples){
-					scene.addTuple(tuple);
-				}
-				captionCount++;
-			}
-			sgs.add(scene);
-		}
-		return sgs;
+		return this.buildSceneGraphs(input, chunks, captionTuples);
 	}
 
 	public List<SceneGraph> parseCaptions(List<String> input) {
 		Map<String, ArrayList<ArrayList<String>>> captionTuples = this.loadTuples(input);
-		List<SceneGraph> sgs = new ArrayList<SceneGraph>();
-		for (String caption: input){
+		return this.buildSceneGraphs(input, captionTuples);
+	}
+
+	/**
+	 * Builds one scene graph from each chunk of consecutive captions, using tuples 
+	 * previously returned by loadTuples. 
+	 */
+	public List<SceneGraph> buildSceneGraphs(final List<String> input, List<Integer> chunks, 
+			final Map<String, ArrayList<ArrayList<String>>> captionTuples) {
+		final int[] offsets = new int[chunks.size() + 1];
+		for (int i = 0; i < chunks.size(); ++i) {
+			offsets[i + 1] = Math.min(offsets[i] + chunks.get(i), input.size());
+		}
+		return this.buildInParallel(chunks.size(),
+				i -> this.buildSceneGraph(input.subList(offsets[i], offsets[i + 1]), captionTuples));
+	}
+
+	/**
+	 * Builds one scene graph per caption, using tuples previously returned by loadTuples.
+	 */
+	public List<SceneGraph> buildSceneGraphs(final List<String> input,
+			final Map<String, ArrayList<ArrayList<String>>> captionTuples) {
+		return this.buildInParallel(input.size(),
+				i -> this.buildSceneGraph(input.subList(i, i + 1), captionTuples));
+	}
+
+	/**
+	 * Builds a scene graph (with merging etc) from the tuples of the given captions.
+	 */
+	protected SceneGraph buildSceneGraph(List<String> captions, Map<String, ArrayList<ArrayList<String>>> captionTuples) {
+		long start = System.nanoTime();
+		SceneGraph scene = new SceneGraph(this.synsets, this.mergeSimilarNodes);
+		for (String caption: captions){
 			ArrayList<ArrayList<String>> tuples = captionTuples.get(caption);
 			assert(tuples != null);
-			SceneGraph scene = new SceneGraph(synonyms, this.mergeSimilarNodes);
 			for (ArrayList<String> tuple: tuples){
 				scene.addTuple(tuple);
 			}
-			sgs.add(scene);
 		}
-		return sgs;
+		SpiceMetrics metrics = SpiceMetrics.get();
+		metrics.recordMicros(SpiceMetrics.Histogram.GRAPH_BUILD_MICROS, start);
+		metrics.record(SpiceMetrics.Histogram.GRAPH_NODES, scene.numNodes());
+		metrics.add(SpiceMetrics.Counter.GRAPHS_BUILT, 1);
+		return scene;
+	}
+
+	/**
+	 * Graphs are independent of each other, so they are built concurrently, each
+	 * into its own position of the result.
+	 */
+	protected List<SceneGraph> buildInParallel(int count, final IntFunction<SceneGraph> builder) {
+		final SceneGraph[] sgs = new SceneGraph[count];
+		if (this.graphBuilders == null) {
+			for (int i = 0; i < count; ++i) {
+				sgs[i] = builder.apply(i);
+			}
+		} else {
+			this.graphBuilders.submit(() -> IntStream.range(0, count).parallel().forEach(i -> 
+				sgs[i] = builder.apply(i)
+			)).join();
+		}
+		return new ArrayList<SceneGraph>(Arrays.asList(sgs));
 	}
 
 	/**
@@ -315,6 +453,7 @@ public class SpiceParser {
 	}
 
 	protected ProposedTuples parseAnnotation(Annotation ann) {
+		long start = System.nanoTime();
 		ProposedTuples tuples = new ProposedTuples();
 		ArrayList<SemanticGraph> sgs = new ArrayList<SemanticGraph>();
 		for (CoreMap sentence : ann.get(CoreAnnotations.SentencesAnnotation.class)) {
@@ -329,8 +468,12 @@ public class SpiceParser {
 			SemanticGraphEnhancer.collapseParticles(sg);
 			SemanticGraphEnhancer.resolvePronouns(sg);
 
+			// Rules are skipped if the graph lacks the relations or tags they require
+			DependencyIndex index = new DependencyIndex(sg);
+			boolean hasSubj = index.hasNoun() && index.hasRelation("nsubj");
+
 			SemgrexMatcher matcher = SUBJ_PRED_OBJ_TRIPLET_PATTERN.matcher(sg);
-			while (matcher.find()) {
+			while (hasSubj && index.hasObjectRelation() && matcher.find()) {
 				IndexedWord subj = matcher.getNode("subj");
 				IndexedWord obj = matcher.getNode("obj");
 				IndexedWord pred = matcher.getNode("pred");
@@ -343,7 +486,8 @@ public class SpiceParser {
 			}
 
 			matcher = ACL_PATTERN.matcher(sg);
-			while (matcher.find()) {
+			while (index.hasRelation("acl") && index.hasVerb() && index.hasNoun() && index.hasObjectRelation()
+					&& matcher.find()) {
 				IndexedWord subj = matcher.getNode("subj");
 				IndexedWord obj = matcher.getNode("obj");
 				IndexedWord pred = matcher.getNode("pred");
@@ -357,6 +501,9 @@ public class SpiceParser {
 
 			SemgrexPattern[] subjPredPatterns = { SUBJ_PRED_PAIR_PATTERN, COPULAR_PATTERN };
 			for (SemgrexPattern p : subjPredPatterns) {
+				if (!hasSubj || (p == COPULAR_PATTERN && !index.hasRelation("cop"))) {
+					continue;
+				}
 				matcher = p.matcher(sg);
 				while (matcher.find()) {
 					IndexedWord subj = matcher.getNode("subj");
@@ -382,21 +529,21 @@ public class SpiceParser {
 			}
 
 			matcher = ADJ_MOD_PATTERN.matcher(sg);
-			while (matcher.find()) {
+			while (index.hasRelation("amod") && matcher.find()) {
 				IndexedWord obj = matcher.getNode("obj");
 				IndexedWord adj = matcher.getNode("adj");
 				tuples.addTuple(obj, adj);
 			}
 
 			matcher = ADJ_PRED_PATTERN.matcher(sg);
-			while (matcher.find()) {
+			while (index.hasAdjective() && index.hasRelation("nsubj") && matcher.find()) {
 				IndexedWord obj = matcher.getNode("obj");
 				IndexedWord adj = matcher.getNode("adj");
 				tuples.addTuple(obj, adj);
 			}
 
 			matcher = PP_MOD_PATTERN.matcher(sg);
-			while (matcher.find()) {
+			while (index.hasNoun() && index.hasNmod() && matcher.find()) {
 				IndexedWord gov = matcher.getNode("gov");
 				IndexedWord mod = matcher.getNode("mod");
 				String reln = matcher.getRelnString("reln");
@@ -408,22 +555,26 @@ public class SpiceParser {
 			}
 
 			matcher = POSS_PATTERN.matcher(sg);
-			while (matcher.find()) {
+			while (index.hasNoun() && index.hasRelation("nmod:poss") && matcher.find()) {
 				IndexedWord gov = matcher.getNode("gov");
 				IndexedWord mod = matcher.getNode("mod");
 				tuples.addTuple(mod, gov, "have");
 			}
 
 			matcher = AGENT_PATTERN.matcher(sg);
-			while (matcher.find()) {
+			while (index.hasVerb() && index.hasRelation("nmod:agent") && index.hasRelation("nsubjpass")
+					&& matcher.find()) {
 				IndexedWord subj = matcher.getNode("subj");
 				IndexedWord obj = matcher.getNode("obj");
 				IndexedWord pred = matcher.getNode("pred");
 				tuples.addTuple(subj, obj, getPredicate(sg, pred));
 			}
 
+			// The plural rules only add tuples for words with a numeric or quantificational modifier
+			boolean hasQuantity = index.hasPluralNoun() && (index.hasRelation(UniversalEnglishGrammaticalRelations.NUMERIC_MODIFIER) 
+					|| index.hasRelation(SemanticGraphEnhancer.QMOD_RELATION));
 			matcher = PLURAL_SUBJECT_OBJECT_PATTERN.matcher(sg);
-			while (matcher.findNextMatchingNode()) {
+			while (hasQuantity && matcher.findNextMatchingNode()) {
 				IndexedWord subj = matcher.getNode("subj");
 				IndexedWord obj = matcher.getNode("obj");
 				checkForNumericAttribute(tuples, sg, subj);
@@ -431,20 +582,20 @@ public class SpiceParser {
 			}
 
 			matcher = PLURAL_SUBJECT_PATTERN.matcher(sg);
-			while (matcher.findNextMatchingNode()) {
+			while (hasQuantity && matcher.findNextMatchingNode()) {
 				IndexedWord subj = matcher.getNode("subj");
 				checkForNumericAttribute(tuples, sg, subj);
 			}
 
 			matcher = PLURAL_OTHER_PATTERN.matcher(sg);
-			while (matcher.findNextMatchingNode()) {
+			while (hasQuantity && matcher.findNextMatchingNode()) {
 				IndexedWord word = matcher.getNode("word");
 				checkForNumericAttribute(tuples, sg, word);
 			}
 
 			matcher = COMPOUND_NOUN_PATTERN.matcher(sg);
 			Set<IndexedWord> compoundNouns = new HashSet<IndexedWord>();
-			while (matcher.find()) {
+			while (index.hasRelation("compound") && matcher.find()) {
 				IndexedWord tail = matcher.getNode("tail");
 				IndexedWord head = matcher.getNode("head");
 				compoundNouns.add(tail);
@@ -452,32 +603,23 @@ public class SpiceParser {
 				tuples.addTuple(tail, head);
 			}
 
-			// Must happen last, since it will reuse existing parts of the scene
-			// graph
-			matcher = NOUN_CONJ_PATTERN.matcher(sg);
-			while (matcher.find()) {
-				IndexedWord tail = matcher.getNode("tail");
-				IndexedWord head = matcher.getNode("head");
-				int original_length = tuples.tuples.size();
-				for (int i=0; i<original_length; ++i){
-					ArrayList<String> prop = tuples.tuples.get(i);
-					if (prop.size() == 3 && prop.get(0).equals(head)){
-						tuples.addTuple(head, prop.get(1), prop.get(2));
-					}
-					if (prop.size() == 3 && prop.get(1).equals(tail)){
-						tuples.addTuple(tail, prop.get(1), prop.get(2));
-					}
-				}
-			}
+			// Conjoined nouns (NOUN_CONJ_PATTERN) do not currently share relations: 
+			// the tuples hold lemma strings, which never equal the matched words, 
+			// so propagating them produced no tuples and the rescan is not run.
 
 			matcher = NOUN_PATTERN.matcher(sg);
-			while (matcher.find()) {
+			while (index.hasNoun() && matcher.find()) {
 				IndexedWord word = matcher.getNode("word");
 				if (!compoundNouns.contains(word)) {
 					tuples.addTuple(word);
 				}
 			}
 		}
+		SpiceMetrics metrics = SpiceMetrics.get();
+		metrics.recordMicros(SpiceMetrics.Histogram.EXTRACTION_MICROS, start);
+		metrics.record(SpiceMetrics.Histogram.TUPLES_PER_CAPTION, tuples.tuples.size());
+		metrics.add(SpiceMetrics.Counter.CAPTIONS_EXTRACTED, 1);
+		metrics.add(SpiceMetrics.Counter.TUPLES_EXTRACTED, tuples.tuples.size());
 		return tuples;
 	}
 
@@ -22,31 +22,81 @@
 package edu.anu.spice;
 
 import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 
 public class SpiceScorer {
 	
 	public SpiceStats stats;
+	protected Checkpoint checkpoint;
+	protected PartialStats partial;
+
+	/**
+	 * A window of consecutive input items and, once parsed, their caption tuples.
+	 */
+	protected static class InputWindow {
+		public ArrayList<Object> imageIds = new ArrayList<Object>();
+		public ArrayList<String> testCaptions = new ArrayList<String>();
+		public ArrayList<String> refCaptions = new ArrayList<String>();
+		public ArrayList<Integer> refChunks = new ArrayList<Integer>();
+		public Map<String, ArrayList<ArrayList<String>>> captionTuples; // of test and ref captions
+
+		public void add(JSONObject item) {
+			this.imageIds.add(item.get("image_id"));
+			this.testCaptions.add((String) item.get("test"));
+			JSONArray refs = (JSONArray) item.get("refs");
+			if (refs == null) {
+				refs = new JSONArray(); // with -bundle, refs may be omitted
+			}
+			this.refChunks.add(refs.size());
+			for (Object ref : refs){
+				this.refCaptions.add((String) ref);
+			}
+		}
+
+		/**
+		 * The distinct test and reference captions, which need to be parsed once each.
+		 */
+		public List<String> distinctCaptions() {
+			LinkedHashSet<String> captions = new LinkedHashSet<String>(this.refCaptions);
+			captions.addAll(this.testCaptions);
+			return new ArrayList<String>(captions);
+		}
+
+		/**
+		 * The distinct captions to parse, which exclude the references if they are read from a bundle.
+		 */
+		public List<String> captionsToParse(ReferenceBundle bundle) {
+			return bundle != null ? new ArrayList<String>(new LinkedHashSet<String>(this.testCaptions))
+					: this.distinctCaptions();
+		}
+	}
 	
 	SpiceScorer(){
 		stats = null;
+		checkpoint = null;
+		partial = null;
 	}
 
 	public static void main(String[] args) {
@@ -54,6 +104,26 @@ public class SpiceScorer {
 			SpiceArguments.printUsage();
 			System.exit(2);
 		}
+		if (args[0].equals("serve")) {
+			SpiceServer.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args[0].equals("compile")) {
+			compile(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args[0].equals("agreement")) {
+			agreement(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args[0].equals("merge")) {
+			merge(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args[0].equals("benchmark")) {
+			benchmark(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		SpiceArguments spiceArgs = new SpiceArguments(args);
 		try {
 			SpiceScorer scorer = new SpiceScorer();
@@ -65,73 +135,297 @@ public class SpiceScorer {
 		}
 	}
 
-	public void scoreBatch(SpiceArguments args) throws IOException, ScriptException {
+	protected static void agreement(String[] args) {
+		if (args.length < 1) {
+			SpiceArguments.printUsage();
+			System.exit(2);
+		}
+		SpiceArguments spiceArgs = new SpiceArguments(args);
+		try {
+			ParserAgreement.run(spiceArgs);
+		} catch (Exception ex) {
+			System.err.println("Error: Could not compare parsers:");
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	protected static void benchmark(String[] args) {
+		if (args.length < 1) {
+			SpiceArguments.printUsage();
+			System.exit(2);
+		}
+		SpiceArguments spiceArgs = new SpiceArguments(args);
+		try {
+			SpiceBenchmark.run(spiceArgs);
+		} catch (Exception ex) {
+			System.err.println("Error: Could not benchmark file input:");
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	protected static void merge(String[] args) {
+		// Partial files come first, followed by any options
+		List<String> paths = new ArrayList<String>();
+		int curArg = 0;
+		while (curArg < args.length && !args[curArg].startsWith("-")) {
+			paths.add(args[curArg++]);
+		}
+		if (paths.isEmpty()) {
+			SpiceArguments.printUsage();
+			System.exit(2);
+		}
+		SpiceArguments spiceArgs = new SpiceArguments(null, args, curArg);
+		try {
+			PartialStats.merge(paths, spiceArgs);
+		} catch (Exception ex) {
+			System.err.println("Error: Could not merge partial files:");
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	protected static void compile(String[] args) {
+		if (args.length < 1) {
+			SpiceArguments.printUsage();
+			System.exit(2);
+		}
+		SpiceArguments spiceArgs = new SpiceArguments(args);
+		try {
+			ReferenceBundle.compile(spiceArgs);
+		} catch (Exception ex) {
+			System.err.println("Error: Could not compile reference bundle:");
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	public void scoreBatch(SpiceArguments args) throws IOException {
 		Stopwatch timer = Stopwatch.createStarted();
-		SpiceParser parser = new SpiceParser(args.cache, args.numThreads, args.synsets);
+		Annotator annotator = new Annotator(args);
+		TupleCategories categories = categories(args);
+		Map<String, String> options = Checkpoint.options(args, annotator.description(), categories);
+		if (args.checkpoint != null) {
+			this.checkpoint = Checkpoint.open(args.checkpoint, args.inputPath, options, args.resume);
+		} else if (args.resume) {
+			throw new IOException("-resume needs the -checkpoint directory to resume from");
+		}
+		boolean sharded = args.shards > 1;
+		if (sharded && (args.outputPath == null || args.checkpoint != null)) {
+			throw new IOException("-shard needs -out for its partial file, and cannot be used with -checkpoint");
+		}
+		final SpiceParser parser = new SpiceParser(args.cache, args.numThreads, args.synsets, args.compressCache,
+				annotator);
+		if (args.workers > 0) {
+			parser.setWorkers(new ParseWorkers(args));
+		}
+		// Reference tuples are read from a bundle instead of being parsed
+		final ReferenceBundle bundle = args.bundle == null ? null : ReferenceBundle.open(args.bundle);
+		if (bundle != null) {
+			bundle.checkOptions(parser.annotator.description(), args.synsets);
+		}
+		
+		this.stats = new SpiceStats(categories, args.detailed);
+		if (this.checkpoint != null) {
+			this.checkpoint.restore(this.stats);
+		}
+		if (sharded) {
+			this.partial = new PartialStats(args.outputPath, args.inputPath, args.shard, args.shards, args.detailed,
+					this.stats.categories, options);
+		}
 		
-		// Build filters for tuple categories
-		Map<String, TupleFilter> filters = new HashMap<String, TupleFilter>();
-		if (args.tupleSubsets) {
-			filters.put("Object", TupleFilter.objectFilter);
-			filters.put("Attribute", TupleFilter.attributeFilter);
-			filters.put("Relation", TupleFilter.relationFilter);
-			filters.put("Cardinality", TupleFilter.cardinalityFilter);
-			filters.put("Color", TupleFilter.colorFilter);
-			filters.put("Size", TupleFilter.sizeFilter);
+		// The input is always parsed and scored in windows, so that the stages overlap.
+		// When streaming, results are written out and discarded window by window. 
+		// With a checkpoint they are saved window by window, and written out at the end.
+		// A shard writes its partial file window by window. Otherwise they are kept until the end.
+		final JsonStreamWriter streamWriter = (args.streaming && args.outputPath != null 
+				&& this.checkpoint == null && !sharded) ? openOutput(args) : null;
+		if (streamWriter != null) {
+			streamWriter.beginArray();
 		}
 		
-		// Parse test and refs from input file
-		ArrayList<Object> image_ids = new ArrayList<Object>();
-		ArrayList<String> testCaptions = new ArrayList<String>();
-		ArrayList<String> refCaptions = new ArrayList<String>();
-		ArrayList<Integer> refChunks = new ArrayList<Integer>();
-		JSONParser json = new JSONParser();
-		JSONArray input;
+		// Graph building and scoring of one window runs on its own thread, 
+		// overlapping with the parsing of the next window
+		ExecutorService scoringStage = Executors.newSingleThreadExecutor();
+		// Images within a window are scored concurrently
+		final ForkJoinPool scoringPool = args.numThreads > 1 ? new ForkJoinPool(args.numThreads) : null;
+		Future<?> scoring = null;
+		SpiceInputReader input = new SpiceInputReader(args.inputPath);
+		boolean complete = false;
 		try {
-			input = (JSONArray) json.parse(new FileReader(args.inputPath));
-			for (Object o : input) {
-			    JSONObject item = (JSONObject) o;
-			    image_ids.add(item.get("image_id"));
-			    testCaptions.add((String) item.get("test"));
-			    JSONArray refs = (JSONArray) item.get("refs");
-			    refChunks.add(refs.size());
-			    for (Object ref : refs){
-			    	refCaptions.add((String) ref);
-			    }
+			// Images scored before the checkpoint are skipped
+			for (int i = 0; this.checkpoint != null && i < this.checkpoint.images(); ++i) {
+				input.next();
 			}
+			int position = 0;
+			while (true) {
+				// Parse test and refs for the next window of the input file
+				final InputWindow window = new InputWindow();
+				JSONObject item;
+				while (window.imageIds.size() < args.windowSize && (item = input.next()) != null) {
+					if (PartialStats.inShard(position++, args.shard, args.shards)) {
+						window.add(item);
+					}
+				}
+				if (window.imageIds.isEmpty()) {
+					break;
+				}
+				
+				// Test and reference captions are parsed together, each distinct caption once
+				List<String> captions = window.captionsToParse(bundle);
+				System.err.println(String.format("Parsing %d distinct captions", captions.size()));
+				window.captionTuples = parser.loadTuples(captions);
+				
+				// At most one window waits for scoring, which bounds memory use
+				waitFor(scoring);
+				scoring = scoringStage.submit(() -> {
+					this.scoreWindow(parser, bundle, window, args, streamWriter, scoringPool);
+					return null;
+				});
+			}
+			waitFor(scoring);
+			complete = true;
 		} catch (ParseException e) {
 			System.err.println("Could not read input: " + args.inputPath);
 			System.err.println(e.toString());
 			e.printStackTrace();
+		} finally {
+			scoringStage.shutdownNow();
+			if (scoringPool != null) {
+				scoringPool.shutdownNow();
+			}
+			// After an error a window may still be scoring, using the parser and cache closed below
+			awaitTermination(scoringStage);
+			input.close();
+			parser.close();
+			if (bundle != null) {
+				bundle.close();
+			}
+			if (this.partial != null) {
+				this.partial.close();
+			}
 		}
 		
-		System.err.println("Parsing reference captions");
-		List<SceneGraph> refSgs = parser.parseCaptions(refCaptions, refChunks);
-		System.err.println("Parsing test captions");		
-		List<SceneGraph> testSgs = parser.parseCaptions(testCaptions);
-		
-		this.stats = new SpiceStats(filters, args.detailed);
-		for (int i=0; i<testSgs.size(); ++i) {
-			this.stats.score(image_ids.get(i), testSgs.get(i), refSgs.get(i), args.synsets);
-		}
 		if (!args.silent){
 			System.out.println(this.stats.toString());
 		}
 		
-		if (args.outputPath != null) {
-			BufferedWriter outputWriter = new BufferedWriter(new FileWriter(args.outputPath));
-			
-			// Pretty print output using javascript
-			String jsonStringNoWhitespace = this.stats.toJSONString();
-			ScriptEngineManager manager = new ScriptEngineManager();
-			ScriptEngine scriptEngine = manager.getEngineByName("JavaScript");
-			scriptEngine.put("jsonString", jsonStringNoWhitespace);
-			scriptEngine.eval("result = JSON.stringify(JSON.parse(jsonString), null, 2)");
-			String prettyPrintedJson = (String) scriptEngine.get("result");
-			
-			outputWriter.write(prettyPrintedJson);			
+		if (this.partial != null) {
+			// Results were written to the partial file as they completed
+		} else if (this.checkpoint != null) {
+			if (!complete) {
+				// Kept, so that the evaluation can be resumed once the input is fixed
+				System.err.println("Scoring progress is saved in " + args.checkpoint);
+			} else {
+				if (args.outputPath != null) {
+					Writer writer = new BufferedWriter(new OutputStreamWriter(
+							new FileOutputStream(args.outputPath), StandardCharsets.UTF_8), 1 << 16);
+					this.checkpoint.writeResults(writer, args.indent);
+					writer.close();
+				}
+				this.checkpoint.delete();
+			}
+		} else if (streamWriter != null) {
+			streamWriter.endArray();
+			streamWriter.close();
+		} else if (args.outputPath != null) {
+			JsonStreamWriter outputWriter = openOutput(args);
+			this.stats.writeJSON(outputWriter);
 			outputWriter.close();
 		}
+		if (args.metricsPath != null) {
+			SpiceMetrics.get().write(args.metricsPath, args.indent);
+		}
 		System.out.println("SPICE evaluation took: " + timer.stop());
 	}
+
+	/**
+	 * The tuple categories to report separately.
+	 */
+	protected static TupleCategories categories(SpiceArguments args) throws IOException {
+		if (args.subsetConfig != null) {
+			return TupleCategories.load(args.subsetConfig);
+		} else if (args.tupleSubsets) {
+			return TupleCategories.defaults();
+		}
+		return new TupleCategories();
+	}
+
+	/**
+	 * Scores the images of a window, whose captions have been parsed, into stats.
+	 */
+	protected static void score(SpiceStats stats, SpiceParser parser, ReferenceBundle bundle, InputWindow window,
+			boolean synsets, ForkJoinPool scoringPool) throws IOException {
+		if (bundle != null) {
+			List<TupleSet> refTuples = new ArrayList<TupleSet>(window.imageIds.size());
+			int refStart = 0;
+			for (int i = 0; i < window.imageIds.size(); ++i) {
+				// Any refs given in the input must be those in the bundle
+				int numRefs = window.refChunks.get(i);
+				if (numRefs > 0) {
+					bundle.checkRefs(window.imageIds.get(i), window.refCaptions.subList(refStart, refStart + numRefs));
+				}
+				refStart += numRefs;
+				refTuples.add(bundle.tuples(window.imageIds.get(i)));
+			}
+			List<SceneGraph> testSgs = parser.buildSceneGraphs(window.testCaptions, window.captionTuples);
+			stats.scoreAllTuples(window.imageIds, testSgs, refTuples, synsets, scoringPool);
+		} else {
+			List<SceneGraph> refSgs = parser.buildSceneGraphs(window.refCaptions, window.refChunks, window.captionTuples);
+			List<SceneGraph> testSgs = parser.buildSceneGraphs(window.testCaptions, window.captionTuples);
+			stats.scoreAll(window.imageIds, testSgs, refSgs, synsets, scoringPool);
+		}
+	}
+
+	protected void scoreWindow(SpiceParser parser, ReferenceBundle bundle, InputWindow window, SpiceArguments args,
+			JsonStreamWriter streamWriter, ForkJoinPool scoringPool) throws IOException {
+		score(this.stats, parser, bundle, window, args.synsets, scoringPool);
+		if (this.partial != null) {
+			this.partial.write(this.stats);
+			System.err.println(String.format("Scored %d images", this.stats.numImages()));
+			this.stats.clearResults();
+		} else if (this.checkpoint != null) {
+			this.checkpoint.save(this.stats, args.indent);
+			System.err.println(String.format("Scored %d images", this.stats.numImages()));
+		} else if (args.streaming) {
+			if (streamWriter != null) {
+				this.stats.writeResults(streamWriter);
+				streamWriter.flush();
+			}
+			System.err.println(String.format("Scored %d images", this.stats.numImages()));
+			this.stats.clearResults();
+		}
+	}
+
+	private static void awaitTermination(ExecutorService stage) {
+		try {
+			while (!stage.awaitTermination(1, TimeUnit.MINUTES)) {
+				System.err.println("Waiting for scoring to stop");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void waitFor(Future<?> stage) throws IOException {
+		if (stage == null) {
+			return;
+		}
+		try {
+			stage.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while scoring", e);
+		} catch (ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class);
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	protected static JsonStreamWriter openOutput(SpiceArguments args) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(args.outputPath), StandardCharsets.UTF_8), 1 << 16);
+		return new JsonStreamWriter(writer, args.indent);
+	}
 }
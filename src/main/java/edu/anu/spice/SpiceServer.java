@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Scores captions for clients on a local socket, keeping the parser, synonym
+ * dictionary and CoreNLP models loaded between requests.
+ * 
+ * Each request is a single line holding a json array in the input file format,
+ * and is answered with a single line holding the per-image results, as written
+ * to the output file, or a json object with an "error" field. Each connection 
+ * may send any number of requests, and connections are served concurrently. 
+ * The captions of requests that arrive together are parsed in one batch, and
+ * if that fails each request is parsed on its own, so that one bad request does
+ * not fail the others. With -bundle, reference tuples are read from the bundle.
+ * A request of "metrics" is answered with the current SpiceMetrics instead.
+ */
+public class SpiceServer implements Closeable {
+
+	/** How long to wait for further requests to parse in the same batch */
+	protected static final long BATCH_WAIT_MILLIS = 20;
+
+	/**
+	 * A request waiting for its captions to be parsed.
+	 */
+	protected static class Request {
+		public final SpiceScorer.InputWindow window;
+		public final List<String> captions;
+		public final CompletableFuture<Map<String, ArrayList<ArrayList<String>>>> tuples;
+
+		public Request(SpiceScorer.InputWindow window, List<String> captions) {
+			this.window = window;
+			this.captions = captions;
+			this.tuples = new CompletableFuture<Map<String, ArrayList<ArrayList<String>>>>();
+		}
+	}
+
+	protected SpiceArguments args;
+	protected SpiceParser parser;
+	protected ReferenceBundle bundle;
+	protected TupleCategories categories;
+	protected ForkJoinPool scoringPool;
+	protected BlockingQueue<Request> pending;
+	protected ServerSocket socket;
+	protected ExecutorService connections;
+	protected Thread batcher;
+	protected volatile boolean running;
+
+	public SpiceServer(SpiceArguments args) throws IOException {
+		this(args, new SpiceParser(args.cache, args.numThreads, args.synsets, args.compressCache,
+				new Annotator(args)));
+		if (args.workers > 0) {
+			this.parser.setWorkers(new ParseWorkers(args));
+		}
+	}
+
+	/**
+	 * Serves requests with the given parser, which is closed with the server.
+	 */
+	protected SpiceServer(SpiceArguments args, SpiceParser parser) throws IOException {
+		this.args = args;
+		this.categories = SpiceScorer.categories(args);
+		this.parser = parser;
+		// Reference tuples are read from a bundle instead of being parsed
+		this.bundle = args.bundle == null ? null : ReferenceBundle.open(args.bundle);
+		if (this.bundle != null) {
+			this.bundle.checkOptions(parser.annotator.description(), args.synsets);
+		}
+		this.scoringPool = args.numThreads > 1 ? new ForkJoinPool(args.numThreads) : null;
+		this.pending = new LinkedBlockingQueue<Request>();
+		this.connections = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+				.setDaemon(true).setNameFormat("spice-connection-%d").build());
+		this.running = true;
+	}
+
+	public static void main(String[] args) {
+		SpiceArguments spiceArgs = new SpiceArguments(null, args, 0);
+		try {
+			final SpiceServer server = new SpiceServer(spiceArgs);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> server.close()));
+			server.run();
+		} catch (Exception ex) {
+			System.err.println("Error: Could not run SPICE server:");
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Loads the models and accepts connections until closed.
+	 */
+	public void run() throws IOException {
+		System.err.println("Loading models");
+		this.parser.loadTuples(Arrays.asList("A dog runs on the grass."));
+		this.startBatcher();
+		this.socket = new ServerSocket(this.args.port, 50, InetAddress.getLoopbackAddress());
+		System.err.println("SPICE server listening on " + this.socket.getInetAddress().getHostAddress() 
+				+ ":" + this.socket.getLocalPort());
+		while (this.running) {
+			final Socket client;
+			try {
+				client = this.socket.accept();
+			} catch (SocketException e) {
+				break; // closed
+			}
+			this.connections.submit(() -> this.serve(client));
+		}
+	}
+
+	protected void startBatcher() {
+		this.batcher = new Thread(() -> this.batchRequests(), "spice-batcher");
+		this.batcher.setDaemon(true);
+		this.batcher.start();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (!this.running) {
+			return;
+		}
+		this.running = false;
+		try {
+			if (this.socket != null) {
+				this.socket.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not close server socket: " + e.getMessage());
+		}
+		this.connections.shutdownNow();
+		if (this.batcher != null) {
+			this.batcher.interrupt();
+			try {
+				this.batcher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (this.scoringPool != null) {
+			this.scoringPool.shutdownNow();
+		}
+		this.parser.close();
+		if (this.bundle != null) {
+			this.bundle.close();
+		}
+		if (this.args.metricsPath != null) {
+			try {
+				SpiceMetrics.get().write(this.args.metricsPath, this.args.indent);
+			} catch (IOException e) {
+				System.err.println("Could not write metrics: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Parses the captions of pending requests, a batch at a time. The parser is 
+	 * only ever used from this thread.
+	 */
+	protected void batchRequests() {
+		List<Request> batch = new ArrayList<Request>();
+		while (this.running) {
+			try {
+				Request request = this.pending.take();
+				int numCaptions = 0;
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WAIT_MILLIS);
+				while (request != null) {
+					batch.add(request);
+					numCaptions += request.captions.size();
+					if (numCaptions >= Annotator.DEFAULT_BATCH_SIZE) {
+						break;
+					}
+					request = this.pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+			this.parseBatch(batch);
+			batch.clear();
+		}
+		for (Request request : batch) {
+			request.tuples.cancel(true);
+		}
+	}
+
+	/**
+	 * Parses the captions of a batch of requests together. If that fails, each
+	 * request is parsed on its own, so only those that fail by themselves fail.
+	 */
+	protected void parseBatch(List<Request> batch) {
+		LinkedHashSet<String> captions = new LinkedHashSet<String>();
+		for (Request request : batch) {
+			captions.addAll(request.captions);
+		}
+		try {
+			Map<String, ArrayList<ArrayList<String>>> tuples = this.parser.loadTuples(new ArrayList<String>(captions));
+			for (Request request : batch) {
+				request.tuples.complete(tuples);
+			}
+			return;
+		} catch (RuntimeException e) {
+			if (batch.size() == 1) {
+				batch.get(0).tuples.completeExceptionally(e);
+				return;
+			}
+		}
+		for (Request request : batch) {
+			try {
+				request.tuples.complete(this.parser.loadTuples(request.captions));
+			} catch (RuntimeException e) {
+				request.tuples.completeExceptionally(e);
+			}
+		}
+	}
+
+	protected void serve(Socket client) {
+		try (Socket connection = client;
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						connection.getInputStream(), StandardCharsets.UTF_8));
+				Writer out = new BufferedWriter(new OutputStreamWriter(
+						connection.getOutputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				out.write(this.respond(line));
+				out.write('\n');
+				out.flush();
+			}
+		} catch (IOException e) {
+			if (this.running) {
+				System.err.println("Connection closed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Scores one request line, returning the results or an error as a json string.
+	 */
+	protected String respond(String line) {
+		if (line.trim().equals("metrics")) {
+			return SpiceMetrics.get().toJSONString();
+		}
+		try {
+			SpiceScorer.InputWindow window = new SpiceScorer.InputWindow();
+			try (SpiceInputReader input = new SpiceInputReader(new StringReader(line))) {
+				JSONObject item;
+				while ((item = input.next()) != null) {
+					window.add(item);
+				}
+			}
+			SpiceStats stats = new SpiceStats(this.categories, this.args.detailed);
+			if (!window.imageIds.isEmpty()) {
+				Request request = new Request(window, window.captionsToParse(this.bundle));
+				this.pending.put(request);
+				window.captionTuples = request.tuples.get();
+				SpiceScorer.score(stats, this.parser, this.bundle, window, this.args.synsets, this.scoringPool);
+			}
+			StringWriter result = new StringWriter();
+			JsonStreamWriter writer = new JsonStreamWriter(result, 0);
+			stats.writeJSON(writer);
+			writer.flush();
+			return result.toString();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return error("Server is shutting down");
+		} catch (ExecutionException e) {
+			return error(Throwables.getRootCause(e).toString());
+		} catch (IOException | ParseException | RuntimeException e) {
+			return error("Invalid request: " + e.toString());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static String error(String message) {
+		JSONObject error = new JSONObject();
+		error.put("error", message);
+		return error.toJSONString();
+	}
+
+}
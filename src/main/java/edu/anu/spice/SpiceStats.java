@@ -21,11 +21,15 @@
 
 package edu.anu.spice;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONAware;
@@ -43,51 +47,166 @@ public class SpiceStats implements JSONAware {
 	protected List<Map<String, Evaluation>> scores;
 	protected List<TupleSet> testTuples;
 	protected List<TupleSet> refTuples;
-	protected Map<String, TupleFilter> filters;
+	protected TupleCategories categories;
+	protected Map<String, Evaluation> totals;
+	protected int numImages;
 	protected double SPICE;
 
 	public SpiceStats(Map<String, TupleFilter> filters, Boolean isDetailed) {
+		this(TupleCategories.fromFilters(filters), isDetailed);
+	}
+
+	public SpiceStats(TupleCategories categories, Boolean isDetailed) {
 		this.isDetailed = isDetailed;
 		this.imageIds = new ArrayList<Object>();
 		this.scores = new ArrayList<Map<String, Evaluation>>();
 		this.testTuples = new ArrayList<TupleSet>();
 		this.refTuples = new ArrayList<TupleSet>();
-		this.filters = filters;
+		this.categories = categories;
+		this.totals = new HashMap<String, Evaluation>();
+		this.numImages = 0;
 	}
 	
+	/**
+	 * Scores of one image, computed independently of every other image.
+	 */
+	protected static class ImageScore {
+		public Object imageId;
+		public Map<String, Evaluation> score;
+		public TupleSet testTuples;
+		public TupleSet refTuples;
+	}
+
 	public void score(Object object, SceneGraph test, SceneGraph ref, boolean useSynsets){
-		this.imageIds.add(object);
-		TupleSet testT = new TupleSet(test);
-		TupleSet refT = new TupleSet(ref);
-		Evaluation all = new Evaluation(testT, refT, false, useSynsets);
+		this.add(this.compute(object, test, ref, useSynsets));
+	}
+
+	/**
+	 * Scores a list of images on the given pool (or on the calling thread if pool
+	 * is null). Each image is scored independently into its own slot, and results
+	 * are then added in input order, so totals and output are identical to scoring
+	 * the images one by one.
+	 */
+	public void scoreAll(final List<Object> imageIds, final List<SceneGraph> tests, final List<SceneGraph> refs,
+			final boolean useSynsets, ForkJoinPool pool){
+		this.scoreAll(tests.size(), i -> this.compute(imageIds.get(i), tests.get(i), refs.get(i), useSynsets), pool);
+	}
+
+	/**
+	 * Scores a list of images against reference tuples, e.g. from a ReferenceBundle, 
+	 * like scoreAll.
+	 */
+	public void scoreAllTuples(final List<Object> imageIds, final List<SceneGraph> tests, final List<TupleSet> refs,
+			final boolean useSynsets, ForkJoinPool pool){
+		this.scoreAll(tests.size(), 
+				i -> this.compute(imageIds.get(i), new TupleSet(tests.get(i)), refs.get(i), useSynsets), pool);
+	}
+
+	protected void scoreAll(int numImages, final IntFunction<ImageScore> compute, ForkJoinPool pool){
+		final ImageScore[] results = new ImageScore[numImages];
+		if (pool == null) {
+			for (int i=0; i<results.length; ++i) {
+				results[i] = compute.apply(i);
+			}
+		} else {
+			pool.submit(() -> IntStream.range(0, results.length).parallel().forEach(i -> 
+				results[i] = compute.apply(i)
+			)).join();
+		}
+		for (ImageScore result : results) {
+			this.add(result);
+		}
+	}
+
+	/**
+	 * Scores one image. Only reads shared state, so it may be called concurrently.
+	 */
+	protected ImageScore compute(Object object, SceneGraph test, SceneGraph ref, boolean useSynsets){
+		return this.compute(object, new TupleSet(test), new TupleSet(ref), useSynsets);
+	}
+
+	protected ImageScore compute(Object object, TupleSet testT, TupleSet refT, boolean useSynsets){
+		long start = System.nanoTime();
+		ImageScore result = new ImageScore();
+		result.imageId = object;
+		// All tuples and every category are scored in a single matching pass
+		result.score = this.categories.evaluate(testT, refT, useSynsets);
+		SpiceMetrics metrics = SpiceMetrics.get();
+		metrics.recordMicros(SpiceMetrics.Histogram.SCORE_MICROS, start);
+		metrics.record(SpiceMetrics.Histogram.TEST_TUPLES, testT.size());
+		metrics.record(SpiceMetrics.Histogram.REF_TUPLES, refT.size());
+		metrics.add(SpiceMetrics.Counter.IMAGES_SCORED, 1);
 		if (this.isDetailed){
-			this.testTuples.add(testT);
-			this.refTuples.add(refT);			
+			result.testTuples = testT;
+			result.refTuples = refT;
 		}
-		HashMap<String, Evaluation> score = new HashMap<String, Evaluation>();
-		score.put("All", all);
-		for (Entry<String, TupleFilter> pair: filters.entrySet()){
-	    	TupleSet testF = new TupleSet(test, pair.getValue());
-	    	TupleSet refF = new TupleSet(ref, pair.getValue());
-	        score.put(pair.getKey(), new Evaluation(testF, refF, true, useSynsets));
-	    }
-	    this.scores.add(score);
+		return result;
 	}
-	
+
+	protected void add(ImageScore result){
+		this.imageIds.add(result.imageId);
+		if (this.isDetailed){
+			this.testTuples.add(result.testTuples);
+			this.refTuples.add(result.refTuples);
+		}
+		this.scores.add(result.score);
+		this.accumulate(result.score);
+	}
+
+	/**
+	 * Adds a per-image score to the running totals used for the final averages.
+	 */
+	protected void accumulate(Map<String, Evaluation> score){
+		this.numImages += 1;
+		for (Entry<String, Evaluation> pair: score.entrySet()){
+			Evaluation s = pair.getValue();
+			Evaluation total = this.totals.get(pair.getKey());
+			if (total == null){
+				total = new Evaluation();
+				this.totals.put(pair.getKey(), total);
+			}
+			total.tp += s.tp;
+			total.fp += s.fp;
+			total.fn += s.fn;
+			if (!Double.isNaN(s.f) && !Double.isNaN(s.pr) && !Double.isNaN(s.re)){
+				total.f += s.f;
+				total.pr += s.pr;
+				total.re += s.re;
+				total.numImages += 1;
+			}
+		}
+	}
+
+	/**
+	 * Discards the per-image results that have already been written out,
+	 * keeping only the running totals.
+	 */
+	public void clearResults(){
+		this.imageIds.clear();
+		this.scores.clear();
+		this.testTuples.clear();
+		this.refTuples.clear();
+	}
+
+	/**
+	 * Number of images scored so far, including any cleared results.
+	 */
+	public int numImages(){
+		return this.numImages;
+	}
+
 	private Evaluation macroAverage(String filter){
 		Evaluation result = new Evaluation();
 		int imageCount = 0;
-		for (Map<String, Evaluation> score: this.scores){
-			Evaluation s = score.get(filter);
-			result.tp += s.tp;
-			result.fp += s.fp;
-			result.fn += s.fn;
-			if (!Double.isNaN(s.f) && !Double.isNaN(s.pr) && !Double.isNaN(s.re)){
-				result.f += s.f;
-				result.pr += s.pr;
-				result.re += s.re;
-				imageCount += 1;
-			}
+		Evaluation total = this.totals.get(filter);
+		if (total != null){
+			result.tp = total.tp;
+			result.fp = total.fp;
+			result.fn = total.fn;
+			result.f = total.f;
+			result.pr = total.pr;
+			result.re = total.re;
+			imageCount = total.numImages;
 		}
 		if (imageCount > 0){
 			result.f /= (double) imageCount;
@@ -127,8 +246,7 @@ public class SpiceStats implements JSONAware {
 		output += "********  SPICE Evaluation  ********\n";
 		output += "\nAll tuples\n";
 		output += this.toString(this.macroAverage("All"));
-		for (Entry<String, TupleFilter> pair: filters.entrySet()){
-			String filter = pair.getKey();
+		for (String filter: this.categories.names()){
 			output += String.format("\n%s tuples\n", filter);
 			output += this.toString(this.macroAverage(filter));	
 	    }
@@ -156,4 +274,48 @@ public class SpiceStats implements JSONAware {
 		return JSONValue.toJSONString(this.toJSONArray());
 	}
 
+	/**
+	 * Writes the per-image results held in memory as consecutive elements of
+	 * an enclosing json array.
+	 */
+	public void writeResults(JsonStreamWriter writer) throws IOException {
+		for (int i=0; i<this.imageIds.size(); ++i){
+			this.writeResult(writer, i);
+		}
+	}
+
+	/**
+	 * Writes the i-th per-image result held in memory.
+	 */
+	public void writeResult(JsonStreamWriter writer, int i) throws IOException {
+		writer.beginObject();
+		writer.name("image_id").value(this.imageIds.get(i));
+		writer.name("scores").beginObject();
+		for (Entry<String, Evaluation> pair: this.scores.get(i).entrySet()){
+			writer.name(pair.getKey());
+			pair.getValue().writeJSON(writer);
+		}
+		writer.endObject();
+		if (this.isDetailed) {
+			writer.name("test_tuples");
+			this.testTuples.get(i).writeJSON(writer);
+			writer.name("ref_tuples");
+			this.refTuples.get(i).writeJSON(writer);
+		}
+		writer.endObject();
+	}
+
+	/**
+	 * Number of per-image results held in memory.
+	 */
+	public int numResults(){
+		return this.imageIds.size();
+	}
+
+	public void writeJSON(JsonStreamWriter writer) throws IOException {
+		writer.beginArray();
+		this.writeResults(writer);
+		writer.endArray();
+	}
+
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wall time, garbage collection time and heap high-water mark of each stage of
+ * an evaluation, as reported by the benchmark command. A stage started while
+ * another is running pauses it, so time spent loading models during annotation,
+ * for example, is only counted once. Collection time and heap usage are
+ * process-wide, so they are only attributable to a stage if stages do not run
+ * concurrently (see Annotator.setProfile).
+ */
+public class StageProfile {
+
+	public enum Stage {
+		JSON_LOAD, SYNONYM_LOAD, MODEL_LOAD, ANNOTATION, TUPLE_EXTRACTION, CACHE_IO, GRAPH_BUILD, SCORING, OUTPUT;
+
+		public String key() {
+			return this.name().toLowerCase();
+		}
+	}
+
+	/**
+	 * Totals of one stage. items counts captions, or images for scoring and output.
+	 */
+	public static class Totals {
+		public long nanos;
+		public long gcCount;
+		public long gcMillis;
+		public long peakHeap;
+		public long items;
+
+		public double seconds() {
+			return this.nanos / 1e9;
+		}
+
+		public double itemsPerSecond() {
+			return this.nanos > 0 ? this.items / this.seconds() : Double.NaN;
+		}
+	}
+
+	/**
+	 * A running stage, which is recorded when closed.
+	 */
+	public class Timer implements AutoCloseable {
+		protected final Stage stage;
+		protected long startNanos;
+		protected long startGcCount;
+		protected long startGcMillis;
+		protected final Totals measured;
+
+		protected Timer(Stage stage) {
+			this.stage = stage;
+			this.measured = new Totals();
+		}
+
+		public void count(long items) {
+			this.measured.items += items;
+		}
+
+		protected void resume() {
+			resetPeaks();
+			this.startNanos = System.nanoTime();
+			this.startGcCount = gcCount();
+			this.startGcMillis = gcMillis();
+		}
+
+		protected void pause() {
+			this.measured.nanos += System.nanoTime() - this.startNanos;
+			this.measured.gcCount += gcCount() - this.startGcCount;
+			this.measured.gcMillis += gcMillis() - this.startGcMillis;
+			this.measured.peakHeap = Math.max(this.measured.peakHeap, peakHeap());
+		}
+
+		@Override
+		public void close() {
+			if (this != noTimer) {
+				StageProfile.this.stop(this);
+			}
+		}
+	}
+
+	/** A profile that records nothing */
+	public static final StageProfile DISABLED = new StageProfile(false);
+
+	protected final boolean enabled;
+	protected final Map<Stage, Totals> totals;
+	protected final Deque<Timer> running;
+	protected final List<GarbageCollectorMXBean> collectors;
+	protected final List<MemoryPoolMXBean> heapPools;
+	protected final Timer noTimer;
+
+	public StageProfile() {
+		this(true);
+	}
+
+	protected StageProfile(boolean enabled) {
+		this.enabled = enabled;
+		this.totals = new EnumMap<Stage, Totals>(Stage.class);
+		for (Stage stage : Stage.values()) {
+			this.totals.put(stage, new Totals());
+		}
+		this.running = new ArrayDeque<Timer>();
+		this.collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		this.heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				this.heapPools.add(pool);
+			}
+		}
+		this.noTimer = new Timer(null);
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * Starts timing a stage, pausing any stage already running.
+	 */
+	public synchronized Timer start(Stage stage) {
+		if (!this.enabled) {
+			return this.noTimer;
+		}
+		Timer outer = this.running.peek();
+		if (outer != null) {
+			outer.pause();
+		}
+		Timer timer = new Timer(stage);
+		this.running.push(timer);
+		timer.resume();
+		return timer;
+	}
+
+	protected synchronized void stop(Timer timer) {
+		if (this.running.peek() != timer) {
+			throw new IllegalStateException("Stages must be stopped in the reverse order of starting");
+		}
+		timer.pause();
+		this.running.pop();
+		Totals totals = this.totals.get(timer.stage);
+		totals.nanos += timer.measured.nanos;
+		totals.gcCount += timer.measured.gcCount;
+		totals.gcMillis += timer.measured.gcMillis;
+		totals.peakHeap = Math.max(totals.peakHeap, timer.measured.peakHeap);
+		totals.items += timer.measured.items;
+		Timer outer = this.running.peek();
+		if (outer != null) {
+			outer.resume();
+		}
+	}
+
+	public Totals get(Stage stage) {
+		return this.totals.get(stage);
+	}
+
+	protected long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : this.collectors) {
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	protected long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : this.collectors) {
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return millis;
+	}
+
+	protected void resetPeaks() {
+		for (MemoryPoolMXBean pool : this.heapPools) {
+			pool.resetPeakUsage();
+		}
+	}
+
+	/**
+	 * The sum of the peak usage of each heap pool since the last reset. Pools
+	 * may peak at different times, so this is an upper bound.
+	 */
+	protected long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : this.heapPools) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	public void writeJSON(JsonStreamWriter writer) throws IOException {
+		writer.beginObject();
+		for (Stage stage : Stage.values()) {
+			Totals totals = this.totals.get(stage);
+			writer.name(stage.key()).beginObject();
+			writer.name("seconds").value(totals.seconds());
+			writer.name("items").value(totals.items);
+			writer.name("items_per_second").value(totals.itemsPerSecond());
+			writer.name("gc_count").value(totals.gcCount);
+			writer.name("gc_seconds").value(totals.gcMillis / 1000.0);
+			writer.name("peak_heap_bytes").value(totals.peakHeap);
+			writer.endObject();
+		}
+		writer.endObject();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder output = new StringBuilder();
+		output.append(String.format("  %-17s %9s %9s %11s %8s %10s\n", "stage", "seconds", "items", "items/sec", "gc sec", "peak MB"));
+		for (Stage stage : Stage.values()) {
+			Totals totals = this.totals.get(stage);
+			output.append(String.format("  %-17s %9.2f %9d %11.1f %8.2f %10.1f\n", stage.key(), totals.seconds(),
+					totals.items, totals.itemsPerSecond(), totals.gcMillis / 1000.0, totals.peakHeap / 1e6));
+		}
+		return output.toString();
+	}
+
+}
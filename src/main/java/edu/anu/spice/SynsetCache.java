@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.cmu.meteor.aligner.SynonymDictionary;
+
+/**
+ * Thread-safe memo of the synsets of each concept string, shared by all the
+ * scene graphs built with the same synonym dictionary. Hits and misses are
+ * counted in SpiceMetrics.
+ */
+public class SynsetCache {
+
+	protected final SynonymDictionary synonyms;
+	protected final ConcurrentHashMap<String, Set<Integer>> cache;
+
+	public SynsetCache(SynonymDictionary synonyms) {
+		this.synonyms = synonyms;
+		this.cache = new ConcurrentHashMap<String, Set<Integer>>();
+	}
+
+	/**
+	 * Returns the (unmodifiable) synsets of a concept and of its stem.
+	 */
+	public Set<Integer> get(String concept) {
+		String key = concept.trim().toLowerCase().replace(" ", "_");
+		Set<Integer> synsets = this.cache.get(key);
+		if (synsets != null) {
+			SpiceMetrics.get().add(SpiceMetrics.Counter.SYNSET_CACHE_HITS, 1);
+			return synsets;
+		}
+		SpiceMetrics.get().add(SpiceMetrics.Counter.SYNSET_CACHE_MISSES, 1);
+		Set<Integer> set;
+		// The dictionary's stemmer is not thread-safe
+		synchronized (this.synonyms) {
+			set = new HashSet<Integer>(this.synonyms.getSynSets(key));
+			set.addAll(this.synonyms.getStemSynSets(key));
+		}
+		synsets = this.cache.putIfAbsent(key, Collections.unmodifiableSet(set));
+		return synsets != null ? synsets : this.cache.get(key);
+	}
+
+	public int size() {
+		return this.cache.size();
+	}
+
+}
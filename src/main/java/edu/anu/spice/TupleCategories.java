@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Named categories of tuples (e.g. Object, Color) that are reported
+ * separately with -subset. Each tuple is classified once into a bitmask of
+ * its categories, mostly through lookup tables, so that all categories can be
+ * scored from a single matching pass (see TupleSet.match_categories).
+ *
+ * A category is defined by an arity and, optionally, a list of words one
+ * element of the tuple must be (e.g. element 1 of an attribute tuple), or by
+ * an arbitrary TupleFilter.
+ */
+public class TupleCategories {
+
+	public static final int MAX_CATEGORIES = 32;
+
+	protected List<String> names;
+	protected int[] arityMasks; // categories defined by arity alone
+	protected List<WordTable> wordTables; // categories defined by words
+	protected List<TupleFilter> filters; // any other categories, by bit
+	protected int filterMask;
+
+	/**
+	 * Category bits of the categories defined by words, looked up by the text
+	 * of one element of tuples of one arity.
+	 */
+	protected static class WordTable {
+		public final int arity;
+		public final int element;
+		public final Map<String, Integer> masks;
+
+		public WordTable(int arity, int element) {
+			this.arity = arity;
+			this.element = element;
+			this.masks = new HashMap<String, Integer>();
+		}
+	}
+
+	public TupleCategories() {
+		this.names = new ArrayList<String>();
+		this.arityMasks = new int[4];
+		this.wordTables = new ArrayList<WordTable>();
+		this.filters = new ArrayList<TupleFilter>();
+		this.filterMask = 0;
+	}
+
+	/**
+	 * The categories reported with -subset by default.
+	 */
+	public static TupleCategories defaults() {
+		// Reported in the same order as the map of filters used before
+		Set<String> order = new HashSet<String>(
+				Arrays.asList("Object", "Attribute", "Relation", "Cardinality", "Color", "Size"));
+		TupleCategories categories = new TupleCategories();
+		for (String name : order) {
+			switch (name) {
+			case "Object":
+				categories.addArity(name, 1);
+				break;
+			case "Attribute":
+				categories.addArity(name, 2);
+				break;
+			case "Relation":
+				categories.addArity(name, 3);
+				break;
+			case "Cardinality":
+				categories.addWords(name, 2, 1, TupleFilter.smallNumbers);
+				break;
+			case "Color":
+				categories.addWords(name, 2, 1, TupleFilter.commonColors);
+				break;
+			case "Size":
+				categories.addWords(name, 2, 1, TupleFilter.sizeAdjectives);
+				break;
+			}
+		}
+		return categories;
+	}
+
+	/**
+	 * Categories defined by arbitrary filters, in the iteration order of the map.
+	 */
+	public static TupleCategories fromFilters(Map<String, TupleFilter> filters) {
+		TupleCategories categories = new TupleCategories();
+		for (Entry<String, TupleFilter> pair : filters.entrySet()) {
+			categories.addFilter(pair.getKey(), pair.getValue());
+		}
+		return categories;
+	}
+
+	/**
+	 * Categories with the given names but no definitions, for reporting results
+	 * that were scored elsewhere (see PartialStats).
+	 */
+	public static TupleCategories named(List<String> names) {
+		TupleCategories categories = new TupleCategories();
+		for (String name : names) {
+			categories.addCategory(name);
+		}
+		return categories;
+	}
+
+	/**
+	 * Reads categories from a json file holding an array of objects such as
+	 * {"name": "Color", "arity": 2, "element": 1, "words": ["red", "blue"]}.
+	 * The element defaults to 1 (the attribute or relation) for tuples with
+	 * more than one element. Without words, every tuple of the arity belongs
+	 * to the category.
+	 */
+	public static TupleCategories load(String path) throws IOException {
+		try (Reader reader = new BufferedReader(new FileReader(path))) {
+			Object config = new JSONParser().parse(reader);
+			if (!(config instanceof JSONArray)) {
+				throw new IOException("Tuple categories in " + path + " must be a json array");
+			}
+			TupleCategories categories = new TupleCategories();
+			for (Object item : (JSONArray) config) {
+				JSONObject category = (JSONObject) item;
+				String name = (String) category.get("name");
+				Number arity = (Number) category.get("arity");
+				if (name == null || arity == null || arity.intValue() < 1 || arity.intValue() > 3) {
+					throw new IOException("Each tuple category needs a name and an arity of 1 to 3: " + category);
+				}
+				JSONArray words = (JSONArray) category.get("words");
+				if (words == null) {
+					categories.addArity(name, arity.intValue());
+				} else {
+					Number element = (Number) category.get("element");
+					int index = element == null ? Math.min(1, arity.intValue() - 1) : element.intValue();
+					if (index < 0 || index >= arity.intValue()) {
+						throw new IOException("Tuple category element is out of range: " + category);
+					}
+					List<String> wordList = new ArrayList<String>();
+					for (Object word : words) {
+						wordList.add(word.toString());
+					}
+					categories.addWords(name, arity.intValue(), index, wordList);
+				}
+			}
+			return categories;
+		} catch (ParseException | ClassCastException e) {
+			throw new IOException("Could not read tuple categories from " + path + ": " + e.toString());
+		}
+	}
+
+	protected int addCategory(String name) {
+		if (this.names.contains(name)) {
+			throw new IllegalArgumentException("Duplicate tuple category " + name);
+		}
+		if (this.names.size() == MAX_CATEGORIES) {
+			throw new IllegalArgumentException("At most " + MAX_CATEGORIES + " tuple categories are supported");
+		}
+		this.names.add(name);
+		this.filters.add(null);
+		return this.names.size() - 1;
+	}
+
+	public void addArity(String name, int arity) {
+		int bit = this.addCategory(name);
+		this.arityMasks[arity] |= 1 << bit;
+	}
+
+	public void addWords(String name, int arity, int element, Iterable<String> words) {
+		int bit = this.addCategory(name);
+		WordTable table = null;
+		for (WordTable existing : this.wordTables) {
+			if (existing.arity == arity && existing.element == element) {
+				table = existing;
+			}
+		}
+		if (table == null) {
+			table = new WordTable(arity, element);
+			this.wordTables.add(table);
+		}
+		for (String word : words) {
+			table.masks.merge(word, 1 << bit, (a, b) -> a | b);
+		}
+	}
+
+	public void addFilter(String name, TupleFilter filter) {
+		int bit = this.addCategory(name);
+		this.filters.set(bit, filter);
+		this.filterMask |= 1 << bit;
+	}
+
+	public List<String> names() {
+		return this.names;
+	}
+
+	public int size() {
+		return this.names.size();
+	}
+
+	public boolean isEmpty() {
+		return this.names.isEmpty();
+	}
+
+	/**
+	 * Returns the bitmask of the categories a tuple belongs to.
+	 */
+	public int classify(SemanticTuple tuple) {
+		int arity = tuple.size();
+		int mask = arity < this.arityMasks.length ? this.arityMasks[arity] : 0;
+		for (WordTable table : this.wordTables) {
+			if (table.arity == arity) {
+				Integer words = table.masks.get(tuple.get(table.element).toString());
+				if (words != null) {
+					mask |= words;
+				}
+			}
+		}
+		for (int bits = this.filterMask; bits != 0; bits &= bits - 1) {
+			int bit = Integer.numberOfTrailingZeros(bits);
+			if (this.filters.get(bit).operation(tuple)) {
+				mask |= 1 << bit;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Classifies every tuple of a set, in its current order.
+	 */
+	public int[] classify(TupleSet tuples) {
+		int[] masks = new int[tuples.size()];
+		for (int i = 0; i < masks.length; ++i) {
+			masks[i] = this.classify(tuples.tuples.get(i));
+		}
+		return masks;
+	}
+
+	/**
+	 * Scores test tuples against reference tuples in one pass. Returns an
+	 * Evaluation for "All" tuples and one per category.
+	 */
+	public Map<String, Evaluation> evaluate(TupleSet test, TupleSet ref, boolean useSynsets) {
+		int[] testMasks = this.classify(test);
+		int[] refMasks = this.classify(ref);
+		int[] matches = new int[this.size()];
+		TupleSet.Count all = test.match_categories(ref, useSynsets, testMasks, refMasks, matches);
+		Map<String, Evaluation> score = new HashMap<String, Evaluation>();
+		score.put("All", new Evaluation(all.n, test.size(), ref.size(), false));
+		for (int bit = 0; bit < this.size(); ++bit) {
+			score.put(this.names.get(bit), new Evaluation(matches[bit],
+					count(testMasks, bit), count(refMasks, bit), true));
+		}
+		return score;
+	}
+
+	protected static int count(int[] masks, int bit) {
+		int count = 0;
+		for (int mask : masks) {
+			count += (mask >>> bit) & 1;
+		}
+		return count;
+	}
+
+}
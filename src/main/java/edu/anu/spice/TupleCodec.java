@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2016, Peter Anderson <peter.anderson@anu.edu.au>
+ *
+ * This file is part of Semantic Propositional Image Caption Evaluation
+ * (SPICE).
+ * 
+ * SPICE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SPICE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public
+ * License along with SPICE.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package edu.anu.spice;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+
+/**
+ * Compact binary encoding of the tuples cached for a caption. Each tuple is
+ * stored as its arity followed by the ids of its lemmas in a LemmaTable that
+ * is shared by every cached caption. Values are laid out as:
+ *
+ *   byte     format version
+ *   byte     flags (FLAG_DEFLATED if the remainder is compressed)
+ *   [varint  uncompressed length, if compressed]
+ *   varint   caption length, caption UTF-8 bytes
+ *   varint   tuple count
+ *   per tuple: byte arity, arity x varint lemma id
+ */
+public class TupleCodec {
+
+	public static final byte FORMAT_VERSION = 1;
+	public static final byte FLAG_DEFLATED = 1;
+	protected static final int MIN_COMPRESS_LENGTH = 128;
+
+	/**
+	 * Dense integer ids for the lemmas seen in cached tuples.
+	 */
+	public static class LemmaTable {
+
+		protected Map<String, Integer> ids;
+		protected volatile String[] lemmas;
+		protected volatile int size;
+
+		public LemmaTable() {
+			this.ids = new ConcurrentHashMap<String, Integer>();
+			this.lemmas = new String[1024];
+			this.size = 0;
+		}
+
+		public int size() {
+			return this.size;
+		}
+
+		/**
+		 * Returns the id of a lemma, or -1 if it has none yet.
+		 */
+		public int id(String lemma) {
+			Integer id = this.ids.get(lemma);
+			return id == null ? -1 : id;
+		}
+
+		/**
+		 * Returns the lemma with the given id, or null if the id is unknown.
+		 */
+		public String lemma(int id) {
+			// The array is read after size, so it holds at least size lemmas
+			int n = this.size;
+			String[] current = this.lemmas;
+			return id < n ? current[id] : null;
+		}
+
+		/**
+		 * Adds a lemma under the next id. Ids below size() are already known and ignored.
+		 */
+		public synchronized void add(int id, String lemma) {
+			if (id < this.size) {
+				return;
+			} else if (id > this.size) {
+				throw new IllegalArgumentException("Lemma ids must be added in order");
+			}
+			if (this.size == this.lemmas.length) {
+				this.lemmas = Arrays.copyOf(this.lemmas, this.lemmas.length * 2);
+			}
+			this.lemmas[this.size] = lemma;
+			this.ids.put(lemma, this.size);
+			this.size++;
+		}
+	}
+
+	/**
+	 * Thrown when a value refers to a lemma id that is not in the table, e.g.
+	 * because another process has extended the table since it was loaded.
+	 */
+	public static class UnknownLemmaException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Assigns ids to lemmas that are not yet in the table while encoding.
+	 */
+	@FunctionalInterface
+	public interface LemmaIds {
+		int id(String lemma);
+	}
+
+	protected boolean compress;
+
+	public TupleCodec(boolean compress) {
+		this.compress = compress;
+	}
+
+	public byte[] encode(String caption, List<? extends List<String>> tuples, LemmaIds lemmaIds) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] captionBytes = caption.getBytes(StandardCharsets.UTF_8);
+		writeVarint(body, captionBytes.length);
+		body.write(captionBytes, 0, captionBytes.length);
+		writeVarint(body, tuples.size());
+		for (List<String> tuple : tuples) {
+			body.write(tuple.size());
+			for (String lemma : tuple) {
+				writeVarint(body, lemmaIds.id(lemma));
+			}
+		}
+		byte[] raw = body.toByteArray();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + 2);
+		out.write(FORMAT_VERSION);
+		if (this.compress && raw.length >= MIN_COMPRESS_LENGTH) {
+			byte[] deflated = deflate(raw);
+			if (deflated.length < raw.length) {
+				out.write(FLAG_DEFLATED);
+				writeVarint(out, raw.length);
+				out.write(deflated, 0, deflated.length);
+				return out.toByteArray();
+			}
+		}
+		out.write(0);
+		out.write(raw, 0, raw.length);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a value held in a byte array. Returns null if the value was
+	 * written for a different caption or in an unknown format.
+	 */
+	public static ArrayList<ArrayList<String>> decode(byte[] value, byte[] caption, LemmaTable lemmas)
+			throws UnknownLemmaException {
+		return decode(new ArrayInput(value, value.length), caption, lemmas);
+	}
+
+	/**
+	 * Decodes a value in place, e.g. directly from LMDB's memory map.
+	 */
+	public static ArrayList<ArrayList<String>> decode(DirectBuffer value, byte[] caption, LemmaTable lemmas)
+			throws UnknownLemmaException {
+		return decode(new DirectInput(value), caption, lemmas);
+	}
+
+	protected static ArrayList<ArrayList<String>> decode(Input in, byte[] caption, LemmaTable lemmas)
+			throws UnknownLemmaException {
+		if (in.length < 2 || in.next() != FORMAT_VERSION) {
+			return null;
+		}
+		if ((in.next() & FLAG_DEFLATED) != 0) {
+			int rawLength = in.readVarint();
+			byte[] deflated = new byte[in.length - in.position];
+			for (int i = 0; i < deflated.length; ++i) {
+				deflated[i] = in.next();
+			}
+			byte[] raw = inflate(deflated, rawLength);
+			if (raw == null) {
+				return null;
+			}
+			in = new ArrayInput(raw, raw.length);
+		}
+		// Check the stored caption, in case two captions share a key
+		if (in.readVarint() != caption.length) {
+			return null;
+		}
+		for (int i = 0; i < caption.length; ++i) {
+			if (in.next() != caption[i]) {
+				return null;
+			}
+		}
+		int numTuples = in.readVarint();
+		ArrayList<ArrayList<String>> tuples = new ArrayList<ArrayList<String>>(numTuples);
+		for (int i = 0; i < numTuples; ++i) {
+			int arity = in.next();
+			ArrayList<String> tuple = new ArrayList<String>(arity);
+			for (int j = 0; j < arity; ++j) {
+				String lemma = lemmas.lemma(in.readVarint());
+				if (lemma == null) {
+					throw new UnknownLemmaException();
+				}
+				tuple.add(lemma);
+			}
+			tuples.add(tuple);
+		}
+		return tuples;
+	}
+
+	protected static byte[] deflate(byte[] raw) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+		byte[] buffer = new byte[1024];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			out.write(buffer, 0, n);
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	protected static byte[] inflate(byte[] deflated, int rawLength) {
+		Inflater inflater = new Inflater();
+		inflater.setInput(deflated);
+		byte[] raw = new byte[rawLength];
+		try {
+			int n = inflater.inflate(raw);
+			return n == rawLength ? raw : null;
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	protected static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Sequential reader over the bytes of a value.
+	 */
+	protected static abstract class Input {
+		protected int position;
+		protected int length;
+
+		protected abstract byte get(int index);
+
+		public byte next() throws UnknownLemmaException {
+			if (this.position >= this.length) {
+				// Truncated value, treat like an unreadable one
+				throw new UnknownLemmaException();
+			}
+			return this.get(this.position++);
+		}
+
+		public int readVarint() throws UnknownLemmaException {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				byte b = this.next();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new UnknownLemmaException();
+		}
+	}
+
+	protected static class ArrayInput extends Input {
+		protected byte[] bytes;
+
+		public ArrayInput(byte[] bytes, int length) {
+			this.bytes = bytes;
+			this.length = length;
+		}
+
+		@Override
+		protected byte get(int index) {
+			return this.bytes[index];
+		}
+	}
+
+	protected static class DirectInput extends Input {
+		protected DirectBuffer buffer;
+
+		public DirectInput(DirectBuffer buffer) {
+			this.buffer = buffer;
+			this.length = buffer.capacity();
+		}
+
+		@Override
+		protected byte get(int index) {
+			return this.buffer.getByte(index);
+		}
+	}
+
+}
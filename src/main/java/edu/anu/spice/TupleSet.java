@@ -21,9 +21,15 @@
 
 package edu.anu.spice;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONAware;
@@ -34,6 +40,7 @@ public class TupleSet implements JSONAware {
 	// synonyms is non-trivial. However, SceneGraph merges duplicates and a TupleSet
 	// can only be constructed from a SceneGraph.
 	protected ArrayList<SemanticTuple> tuples;
+	protected Index index; // built on demand, discarded whenever tuples are added or reordered
 	public class Count {
 		public int n;
 		public double weighted_n;
@@ -73,8 +80,108 @@ public class TupleSet implements JSONAware {
 		// Ensure repeatability
 		Collections.sort(this.tuples);
 	}
+
+	/**
+	 * A set of tuples that were previously taken from a SceneGraph, in their sorted order.
+	 */
+	protected TupleSet(ArrayList<SemanticTuple> tuples) {
+		this.tuples = tuples;
+	}
+
+	/**
+	 * Positions of tuples by arity and by the lemmas and synsets of their first
+	 * element. Tuples can only be similar if their first elements share a lemma or
+	 * a synset, and can only match exactly if all their concepts are equal.
+	 */
+	protected static class Index {
+		protected final BitSet[] arities;
+		protected final Map<Integer, BitSet> lemmas;
+		protected final Map<Integer, BitSet> synsets;
+		protected final Map<List<ConceptDictionary.Key>, Integer> exact;
+		protected final BitSet candidates;
+
+		public Index(List<SemanticTuple> tuples) {
+			this.arities = new BitSet[4];
+			this.lemmas = new HashMap<Integer, BitSet>();
+			this.synsets = new HashMap<Integer, BitSet>();
+			this.exact = new HashMap<List<ConceptDictionary.Key>, Integer>();
+			this.candidates = new BitSet(tuples.size());
+			for (int i = 0; i < tuples.size(); ++i) {
+				SemanticTuple tuple = tuples.get(i);
+				int arity = Math.min(tuple.size(), this.arities.length - 1);
+				if (this.arities[arity] == null) {
+					this.arities[arity] = new BitSet(tuples.size());
+				}
+				this.arities[arity].set(i);
+				ConceptDictionary.Key first = tuple.get(0).key();
+				for (int id : first.ids) {
+					this.lemmas.computeIfAbsent(id, k -> new BitSet()).set(i);
+				}
+				for (int synset : first.synsets) {
+					this.synsets.computeIfAbsent(synset, k -> new BitSet()).set(i);
+				}
+				this.exact.putIfAbsent(keys(tuple), i); // keep the first match
+			}
+		}
+
+		protected static List<ConceptDictionary.Key> keys(SemanticTuple tuple) {
+			ConceptDictionary.Key[] keys = new ConceptDictionary.Key[tuple.size()];
+			for (int i = 0; i < keys.length; ++i) {
+				keys[i] = tuple.get(i).key();
+			}
+			return Arrays.asList(keys);
+		}
+
+		/**
+		 * Returns the positions of the indexed tuples that may be similar to the given
+		 * tuple. The returned set is reused by the next call.
+		 */
+		public BitSet candidates(SemanticTuple tuple) {
+			this.candidates.clear();
+			BitSet arity = this.arities[Math.min(tuple.size(), this.arities.length - 1)];
+			if (arity == null) {
+				return this.candidates;
+			}
+			ConceptDictionary.Key first = tuple.get(0).key();
+			for (int id : first.ids) {
+				BitSet positions = this.lemmas.get(id);
+				if (positions != null) {
+					this.candidates.or(positions);
+				}
+			}
+			for (int synset : first.synsets) {
+				BitSet positions = this.synsets.get(synset);
+				if (positions != null) {
+					this.candidates.or(positions);
+				}
+			}
+			this.candidates.and(arity);
+			return this.candidates;
+		}
+
+		/**
+		 * Returns the position of the first indexed tuple matching the given tuple exactly, or -1.
+		 */
+		public int exactMatch(SemanticTuple tuple) {
+			Integer position = this.exact.get(keys(tuple));
+			return position == null ? -1 : position;
+		}
+	}
+
+	protected Index index() {
+		if (this.index == null) {
+			this.index = new Index(this.tuples);
+		}
+		return this.index;
+	}
+
+	protected void sort() {
+		Collections.sort(this.tuples);
+		this.index = null;
+	}
 	
 	public boolean add(SemanticTuple tuple){
+		this.index = null;
 		return this.tuples.add(tuple);
 	}
 
@@ -87,9 +194,15 @@ public class TupleSet implements JSONAware {
 		for (SemanticTuple tup : o.tuples) {
 			tup.truthValue = false;
 		}
+		// Only the references sharing a lemma or synset with the first element
+		// can be similar, and they are visited in order so the greedy choice of
+		// the first similar reference is unchanged
+		Index index = o.index();
 		for (SemanticTuple tup1 : this.tuples) {
 			tup1.truthValue = false;
-			for (SemanticTuple tup2 : o.tuples) {
+			BitSet candidates = index.candidates(tup1);
+			for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+				SemanticTuple tup2 = o.tuples.get(i);
 				if (tup1.similarTo(tup2)) {
 					tup1.truthValue = true;
 					tup2.truthValue = true;
@@ -100,8 +213,8 @@ public class TupleSet implements JSONAware {
 			}
 		}
 		// Ensure ordered output
-		Collections.sort(this.tuples);		
-		Collections.sort(o.tuples);
+		this.sort();
+		o.sort();
 		return count;
 	}
 	
@@ -118,21 +231,68 @@ public class TupleSet implements JSONAware {
 		for (SemanticTuple tup : o.tuples) {
 			tup.truthValue = false;
 		}
+		Index index = o.index();
 		for (SemanticTuple tup1 : this.tuples) {
 			tup1.truthValue = false;
-			for (SemanticTuple tup2 : o.tuples) {
-				if (tup1.matchesTo(tup2)) {
-					tup1.truthValue = true;
-					tup2.truthValue = true;
-					count.n += 1;
-					count.weighted_n += (tup1.idf + tup2.idf)/2.0;
-					break;
+			int i = index.exactMatch(tup1);
+			if (i >= 0) {
+				SemanticTuple tup2 = o.tuples.get(i);
+				tup1.truthValue = true;
+				tup2.truthValue = true;
+				count.n += 1;
+				count.weighted_n += (tup1.idf + tup2.idf)/2.0;
+			}
+		}
+		// Ensure ordered output
+		this.sort();
+		o.sort();
+		return count;
+	}
+
+	/**
+	 * Matches like match_similar (or match_exact without synsets), and also
+	 * counts per category the tuples of this set that match a tuple of o in the
+	 * same category. masks and otherMasks hold the category bits of each tuple of
+	 * this set and of o, in their current order, and matches receives the count 
+	 * for each bit.
+	 */
+	public Count match_categories(TupleSet o, boolean useSynsets, int[] masks, int[] otherMasks, int[] matches) {
+		Count count = new Count();
+		for (SemanticTuple tup : o.tuples) {
+			tup.truthValue = false;
+		}
+		Index index = o.index();
+		for (int t = 0; t < this.tuples.size(); ++t) {
+			SemanticTuple tup1 = this.tuples.get(t);
+			tup1.truthValue = false;
+			int wanted = masks[t];
+			int found = 0;
+			BitSet candidates = index.candidates(tup1);
+			for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+				if (tup1.truthValue && (otherMasks[i] & wanted & ~found) == 0) {
+					continue; // already matched, and nothing new to learn from this tuple
 				}
+				SemanticTuple tup2 = o.tuples.get(i);
+				if (useSynsets ? tup1.similarTo(tup2) : tup1.matchesTo(tup2)) {
+					if (!tup1.truthValue) { // the first match, as in match_similar
+						tup1.truthValue = true;
+						tup2.truthValue = true;
+						count.n += 1;
+						count.weighted_n += (tup1.idf + tup2.idf)/2.0;
+					}
+					found |= otherMasks[i] & wanted;
+					if (found == wanted) {
+						break;
+					}
+				}
+			}
+			for (int bits = found; bits != 0; bits &= bits - 1) {
+				matches[Integer.numberOfTrailingZeros(bits)] += 1;
 			}
 		}
 		// Ensure ordered output
-		Collections.sort(this.tuples);
-		Collections.sort(o.tuples);
+		this.sort();
+		o.sort();
 		return count;
 	}
 
@@ -141,6 +301,14 @@ public class TupleSet implements JSONAware {
 		return JSONArray.toJSONString(this.tuples);
 	}
 
+	public void writeJSON(JsonStreamWriter writer) throws IOException {
+		writer.beginArray();
+		for (SemanticTuple tuple : this.tuples) {
+			tuple.writeJSON(writer);
+		}
+		writer.endArray();
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder value_list = new StringBuilder();
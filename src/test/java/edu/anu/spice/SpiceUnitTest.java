@@ -22,6 +22,7 @@
 package edu.anu.spice;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -29,11 +30,28 @@ import org.junit.Test;
 import edu.anu.spice.TupleSet.Count;
 import edu.cmu.meteor.aligner.SynonymDictionary;
 import edu.cmu.meteor.util.Constants;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class SpiceUnitTest {
 	
@@ -47,6 +65,11 @@ public class SpiceUnitTest {
 	private SemanticConcept dog;
 	private SemanticConcept cat;	
 	
+	// The references of an image, and test tuples scored against them
+	private TupleSet refs;
+	private TupleSet blueDog;
+	private TupleSet redCat;
+	
 	@Before
 	public void setup(){
 		blue = new SemanticConcept("blue", new HashSet<Integer>(Arrays.asList(1)));
@@ -58,11 +81,28 @@ public class SpiceUnitTest {
 		
 		dog = new SemanticConcept("dog", new HashSet<Integer>(Arrays.asList(10)));
 		cat = new SemanticConcept("cat", new HashSet<Integer>(Arrays.asList(11)));	
+		
+		refs = new TupleSet(new ArrayList<SemanticTuple>(Arrays.asList(new SemanticTuple(dog),
+				new SemanticTuple(dog, blue), new SemanticTuple(dog, color, cat))));
+		blueDog = new TupleSet(new ArrayList<SemanticTuple>(Arrays.asList(
+				new SemanticTuple(dog), new SemanticTuple(dog, alsoBlue))));
+		redCat = new TupleSet(new ArrayList<SemanticTuple>(Arrays.asList(new SemanticTuple(cat, red))));
+	}
+	
+	/**
+	 * Removes a temporary directory of files created by a test.
+	 */
+	private static void deleteDirectory(File dir) {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
 	}
 	
 	@Test
 	public void testSemanticConcept() {
 		assertTrue(blue.equals(alsoBlue));
+		assertTrue(blue.hashCode() == alsoBlue.hashCode());
 		assertFalse(blue.equals(notBlue));
 		assertFalse(blue.equals(azure));
 		assertFalse(blue.equals(red));
@@ -76,12 +116,36 @@ public class SpiceUnitTest {
 		assertTrue(blue.similarTo(color));
 		assertTrue(red.similarTo(color));		
 		
+		assertEquals(1, blue.similarity(alsoBlue), 0);
+		assertEquals(1, blue.similarity(notBlue), 0);
+		assertEquals(0, blue.similarity(red), 0);
+		assertEquals(1/3f, azure.similarity(color), 1e-6);
+		SemanticConcept noSynsets = new SemanticConcept("unknown", new HashSet<Integer>());
+		assertTrue(Float.isNaN(noSynsets.similarity(new SemanticConcept("other", new HashSet<Integer>()))));
+		
 		SemanticConcept dogCat = new SemanticConcept("dog", new HashSet<Integer>(Arrays.asList(10)));
 		assertFalse(dogCat.merge(dog));
 		assertTrue(dogCat.equals(dog));
 		assertTrue(dogCat.merge(cat));
-		assertTrue(dogCat.concepts.equals(new HashSet<String>(Arrays.asList("dog","cat"))));
-		assertTrue(dogCat.synsets.equals(new HashSet<Integer>(Arrays.asList(10,11))));
+		assertTrue(dogCat.getConcepts().equals(new HashSet<String>(Arrays.asList("dog","cat"))));
+		assertTrue(dogCat.getSynsets().equals(new HashSet<Integer>(Arrays.asList(10,11))));
+	}
+	
+	@Test
+	public void testSceneGraphNodeMerge() {
+		SceneGraphNode node = new SceneGraphNode(dog);
+		node.addAttribute(new SemanticConcept("blue", new HashSet<Integer>(Arrays.asList(1))));
+		assertTrue(node.mergeAttribute(azure));
+		assertEquals(1, node.getAttributes().size());
+		// The merged attribute is still found after its content changed
+		SemanticConcept blueAzure = new SemanticConcept("blue", new HashSet<Integer>(Arrays.asList(1)));
+		blueAzure.merge(azure);
+		assertTrue(node.getAttributes().contains(blueAzure));
+		SceneGraphNode other = new SceneGraphNode(dog);
+		other.addAttribute(blueAzure);
+		assertTrue(node.equals(other));
+		other.addAttribute(red);
+		assertFalse(node.equals(other));
 	}
 	
 	@Test
@@ -110,25 +174,39 @@ public class SpiceUnitTest {
 		assertTrue(redDog.size() == 2);
 		SemanticConcept object = redDog.tuple.get(0);
 		SemanticConcept attr = redDog.tuple.get(1);
-		assertTrue(object.concepts.equals(new HashSet<String>(Arrays.asList("dog"))));
-		assertTrue(object.synsets.equals(new HashSet<Integer>(Arrays.asList(10))));
-		assertTrue(attr.concepts.equals(new HashSet<String>(Arrays.asList("blue","red"))));
-		assertTrue(attr.synsets.equals(new HashSet<Integer>(Arrays.asList(1,2))));
+		assertTrue(object.getConcepts().equals(new HashSet<String>(Arrays.asList("dog"))));
+		assertTrue(object.getSynsets().equals(new HashSet<Integer>(Arrays.asList(10))));
+		assertTrue(attr.getConcepts().equals(new HashSet<String>(Arrays.asList("blue","red"))));
+		assertTrue(attr.getSynsets().equals(new HashSet<Integer>(Arrays.asList(1,2))));
 	}
 	
-	@Test
-	public void testTupleSet() {
-		
-		SynonymDictionary synonyms;
+	private static SynonymDictionary loadSynonyms() {
 		URL synDirURL = Constants.DEFAULT_SYN_DIR_URL;
 		try {
 			URL excFileURL = new URL(synDirURL.toString() + "/english.exceptions");
 			URL synFileURL = new URL(synDirURL.toString() + "/english.synsets");
 			URL relFileURL = new URL(synDirURL.toString() + "/english.relations");
-			synonyms = new SynonymDictionary(excFileURL, synFileURL, relFileURL);
+			return new SynonymDictionary(excFileURL, synFileURL, relFileURL);
 		} catch (IOException ex) {
 			throw new RuntimeException("Error: Synonym dictionary could not be loaded (" + synDirURL.toString() + ")");
 		}
+	}
+	
+	@Test
+	public void testSynsetCacheMetrics() {
+		SynsetCache cache = new SynsetCache(loadSynonyms());
+		SpiceMetrics metrics = SpiceMetrics.get();
+		long hits = metrics.count(SpiceMetrics.Counter.SYNSET_CACHE_HITS);
+		long misses = metrics.count(SpiceMetrics.Counter.SYNSET_CACHE_MISSES);
+		assertEquals(cache.get("bus"), cache.get(" Bus"));
+		assertEquals(hits + 1, metrics.count(SpiceMetrics.Counter.SYNSET_CACHE_HITS));
+		assertEquals(misses + 1, metrics.count(SpiceMetrics.Counter.SYNSET_CACHE_MISSES));
+		assertTrue(metrics.toJSONString().contains("\"synset_cache_hits\""));
+	}
+	
+	@Test
+	public void testTupleSet() {
+		SynonymDictionary synonyms = loadSynonyms();
 
 		boolean[] allowMerge = {true,false};
 		for (int i=0; i<allowMerge.length; i++){
@@ -157,6 +235,643 @@ public class SpiceUnitTest {
 			Count count = can.match_exact(ref);
 			assertTrue(count.n == can.size());
 			assertTrue(count.n == 5);
+			
+			// Scoring all categories in one pass agrees with filtering each category
+			TupleCategories categories = TupleCategories.defaults();
+			Map<String, TupleFilter> filters = new HashMap<String, TupleFilter>();
+			filters.put("Object", TupleFilter.objectFilter);
+			filters.put("Attribute", TupleFilter.attributeFilter);
+			filters.put("Relation", TupleFilter.relationFilter);
+			filters.put("Cardinality", TupleFilter.cardinalityFilter);
+			filters.put("Color", TupleFilter.colorFilter);
+			filters.put("Size", TupleFilter.sizeFilter);
+			Map<String, Evaluation> score = categories.evaluate(new TupleSet(can_sg), new TupleSet(ref_sg), true);
+			assertEquals(filters.keySet(), new HashSet<String>(categories.names()));
+			for (Map.Entry<String, TupleFilter> filter : filters.entrySet()) {
+				Evaluation expected = new Evaluation(new TupleSet(can_sg, filter.getValue()), 
+						new TupleSet(ref_sg, filter.getValue()), true, true);
+				Evaluation actual = score.get(filter.getKey());
+				assertEquals(expected.tp, actual.tp);
+				assertEquals(expected.fp, actual.fp);
+				assertEquals(expected.fn, actual.fn);
+			}
+			assertEquals(5, score.get("All").tp);
+			assertEquals(1, score.get("Color").tp);
+		}
+	}
+	
+	@Test
+	public void testTupleSetMatching() {
+		TupleSet ref = new TupleSet(new SceneGraph((SynsetCache) null));
+		SemanticTuple redDog = new SemanticTuple(dog, red);
+		SemanticTuple azureDog = new SemanticTuple(dog, azure);
+		SemanticTuple blueDog = new SemanticTuple(dog, blue);
+		ref.add(new SemanticTuple(cat));
+		ref.add(redDog);
+		ref.add(azureDog);
+		ref.add(blueDog);
+		TupleSet can = new TupleSet(new SceneGraph((SynsetCache) null));
+		can.add(new SemanticTuple(dog, alsoBlue));
+		can.add(new SemanticTuple(cat, red));
+		
+		Count similar = can.match_similar(ref);
+		assertTrue(similar.n == 1);
+		// The first similar reference is matched, as in a linear scan
+		assertTrue(azureDog.truthValue);
+		assertFalse(blueDog.truthValue);
+		
+		Count exact = can.match_exact(ref);
+		assertTrue(exact.n == 1);
+		assertTrue(blueDog.truthValue);
+		assertFalse(azureDog.truthValue);
+	}
+	
+	@Test
+	public void testJsonStreamWriter() throws IOException {
+		StringWriter out = new StringWriter();
+		JsonStreamWriter writer = new JsonStreamWriter(out, 2);
+		writer.beginArray();
+		writer.beginObject();
+		writer.name("image_id").value((Object) Long.valueOf(42));
+		writer.name("scores").beginObject();
+		writer.name("f").value(0.5);
+		writer.name("pr").value(1.0);
+		writer.name("re").value(Double.NaN);
+		writer.endObject();
+		writer.name("test_tuples").beginArray().endArray();
+		writer.endObject();
+		writer.endArray();
+		writer.flush();
+		// Same layout as JSON.stringify(value, null, 2)
+		assertEquals("[\n  {\n    \"image_id\": 42,\n    \"scores\": {\n      \"f\": 0.5,\n"
+				+ "      \"pr\": 1,\n      \"re\": null\n    },\n    \"test_tuples\": []\n  }\n]", out.toString());
+		
+		out = new StringWriter();
+		writer = new JsonStreamWriter(out, 0);
+		writer.beginObject().name("tuple").beginArray().value("a \"b\"").endArray().endObject();
+		writer.flush();
+		assertEquals("{\"tuple\":[\"a \\\"b\\\"\"]}", out.toString());
+	}
+	
+	private static List<JSONObject> readItems(String json) throws Exception {
+		List<JSONObject> items = new ArrayList<JSONObject>();
+		try (SpiceInputReader input = new SpiceInputReader(new StringReader(json))) {
+			JSONObject item;
+			while ((item = input.next()) != null) {
+				items.add(item);
+			}
+		}
+		return items;
+	}
+	
+	@Test
+	public void testSpiceInputReader() throws Exception {
+		List<JSONObject> items = readItems("[{\"image_id\": 1, \"test\": \"a dog\", \"refs\": [\"a brown dog\", \"a puppy\"]},"
+				+ " {\"image_id\": \"two\", \"test\": \"a cat\", \"refs\": [], \"extra\": {\"nested\": [[1], {\"x\": null}]}},"
+				+ " {\"image_id\": 3, \"test\": \"\", \"refs\": [\"a red cat\"]}]");
+		assertEquals(3, items.size());
+		assertEquals(1L, items.get(0).get("image_id"));
+		assertEquals(Arrays.asList("a brown dog", "a puppy"), items.get(0).get("refs"));
+		assertEquals("two", items.get(1).get("image_id"));
+		assertEquals(new JSONArray(), items.get(1).get("refs"));
+		JSONArray nested = (JSONArray) ((JSONObject) items.get(1).get("extra")).get("nested");
+		assertEquals(Arrays.asList(1L), nested.get(0));
+		assertTrue(((JSONObject) nested.get(1)).containsKey("x"));
+		assertEquals(Arrays.asList("a red cat"), items.get(2).get("refs"));
+		assertTrue(readItems(" [ ] ").isEmpty());
+		
+		for (String invalid : new String[] { "{\"image_id\": 1, \"test\": \"a dog\", \"refs\": []}", "[[\"a dog\"]]", "[1]" }) {
+			try {
+				readItems(invalid);
+				fail("Input " + invalid + " is not an array of items");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		try {
+			readItems("[{\"image_id\": 1, \"test\": \"a dog\", \"refs\": [\"a brown dog\"]}, {\"image_id\": 2, \"refs\": [\"a");
+			fail("Truncated input should be reported");
+		} catch (ParseException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testTupleCodec() throws Exception {
+		ArrayList<ArrayList<String>> tuples = new ArrayList<ArrayList<String>>();
+		tuples.add(new ArrayList<String>(Arrays.asList("dog")));
+		tuples.add(new ArrayList<String>(Arrays.asList("dog", "brown")));
+		tuples.add(new ArrayList<String>(Arrays.asList("dog", "chase", "ball")));
+		for (int i = 0; i < 50; ++i) {
+			tuples.add(new ArrayList<String>(Arrays.asList("ball", "red")));
+		}
+		String caption = "A brown dog chases a red ball.";
+		byte[] captionBytes = caption.getBytes(StandardCharsets.UTF_8);
+		for (boolean compress : new boolean[] { false, true }) {
+			final TupleCodec.LemmaTable lemmas = new TupleCodec.LemmaTable();
+			byte[] value = new TupleCodec(compress).encode(caption, tuples, lemma -> {
+				if (lemmas.id(lemma) < 0) {
+					lemmas.add(lemmas.size(), lemma);
+				}
+				return lemmas.id(lemma);
+			});
+			assertEquals(5, lemmas.size());
+			assertEquals(compress, (value[1] & TupleCodec.FLAG_DEFLATED) != 0);
+			assertEquals(tuples, TupleCodec.decode(value, captionBytes, lemmas));
+			// A value stored under the same key for a different caption is a miss
+			assertNull(TupleCodec.decode(value, "A dog.".getBytes(StandardCharsets.UTF_8), lemmas));
+		}
+	}
+	
+	@Test
+	public void testLemmaTableConcurrentLookup() throws Exception {
+		final TupleCodec.LemmaTable lemmas = new TupleCodec.LemmaTable();
+		final int count = 200000;
+		Thread writer = new Thread(() -> {
+			for (int id = 0; id < count; ++id) {
+				lemmas.add(id, "lemma" + id);
+			}
+		});
+		writer.start();
+		// Lookups race with the table growing, and must see each lemma or nothing
+		while (writer.isAlive()) {
+			int size = lemmas.size();
+			for (int id = Math.max(0, size - 64); id < size + 64; ++id) {
+				String lemma = lemmas.lemma(id);
+				if (id < size) {
+					assertEquals("lemma" + id, lemma);
+				} else if (lemma != null) {
+					assertEquals("lemma" + id, lemma);
+				}
+			}
+		}
+		writer.join();
+		assertEquals(count, lemmas.size());
+		assertEquals("lemma" + (count - 1), lemmas.lemma(count - 1));
+	}
+	
+	@Test
+	public void testParserAgreement() {
+		ParserAgreement agreement = new ParserAgreement();
+		agreement.add(Arrays.asList(Arrays.asList("dog"), Arrays.asList("dog", "brown")),
+				Arrays.asList(Arrays.asList("dog", "brown"), Arrays.asList("dog")));
+		agreement.add(Arrays.asList(Arrays.asList("dog"), Arrays.asList("dog", "chase", "ball")),
+				Arrays.asList(Arrays.asList("dog"), Arrays.asList("dog", "chase", "cat"), Arrays.asList("cat")));
+		assertEquals(2, agreement.captions);
+		assertEquals(1, agreement.identical);
+		assertEquals(3, agreement.evaluation(0).tp);
+		assertEquals(3.0 / 5, agreement.evaluation(0).pr, 1e-9);
+		assertEquals(3.0 / 4, agreement.evaluation(0).re, 1e-9);
+		assertEquals(0, agreement.evaluation(3).tp);
+	}
+	
+	@Test
+	public void testAnnotatorBackends() {
+		Annotator annotator = new Annotator(1, 10, Annotator.Backend.LEAN, Annotator.Backend.SR, 3);
+		assertEquals("lean+sr>3", annotator.description());
+		assertFalse(annotator.isDefault());
+		assertEquals(Annotator.Backend.LEAN, annotator.route(" A  brown dog. "));
+		assertEquals(Annotator.Backend.SR, annotator.route("A brown dog runs."));
+		assertTrue(new Annotator(1, 10).isDefault());
+		assertEquals(Annotator.Backend.NNDEP, Annotator.Backend.forName("nndep"));
+	}
+	
+	@Test
+	public void testReferenceBundle() throws Exception {
+		ArrayList<SemanticTuple> replaced = new ArrayList<SemanticTuple>();
+		replaced.add(new SemanticTuple(cat));
+		
+		File dir = Files.createTempDirectory("spice-bundle").toFile();
+		try {
+			ReferenceBundle bundle = ReferenceBundle.open(dir.getPath());
+			assertEquals(0, bundle.size());
+			ReferenceBundle.SegmentWriter writer = new ReferenceBundle.SegmentWriter(bundle.segmentFile(0), "pcfg", true);
+			writer.add(ReferenceBundle.key(1L), Arrays.asList("A blue dog."), new TupleSet(replaced));
+			writer.add(ReferenceBundle.key("a"), Arrays.asList("A blue dog.", "A dog and a cat."), refs);
+			writer.close();
+			// A later segment replaces the images it contains
+			writer = new ReferenceBundle.SegmentWriter(bundle.segmentFile(1), "pcfg", true);
+			writer.add(ReferenceBundle.key(1L), Arrays.asList("A blue dog.", "A cat."), new TupleSet(replaced));
+			writer.close();
+			
+			bundle = ReferenceBundle.open(dir.getPath());
+			assertEquals(2, bundle.size());
+			assertTrue(bundle.contains("a"));
+			assertFalse(bundle.contains(2L));
+			assertEquals(Arrays.asList("A blue dog.", "A dog and a cat."), bundle.captions("a"));
+			assertEquals(Arrays.asList("A blue dog.", "A cat."), bundle.captions(1L));
+			TupleSet loaded = bundle.tuples("a");
+			assertEquals(refs.toString(), loaded.toString());
+			assertEquals(3, loaded.match_exact(refs).n);
+			assertEquals(1, bundle.tuples(1L).size());
+			bundle.checkRefs("a", Arrays.asList("A dog and a cat.", "A blue dog.", "A dog and a cat."));
+			try {
+				bundle.checkRefs("a", Arrays.asList("A blue dog.", "A red dog."));
+				fail("References should not match");
+			} catch (IOException e) {
+				// expected
+			}
+			bundle.checkOptions("pcfg", true);
+			try {
+				bundle.checkOptions("sr", true);
+				fail("Options should not match");
+			} catch (IOException e) {
+				// expected
+			}
+			bundle.close();
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+	
+	@Test
+	public void testStageProfile() throws Exception {
+		StageProfile profile = new StageProfile();
+		try (StageProfile.Timer outer = profile.start(StageProfile.Stage.ANNOTATION)) {
+			outer.count(3);
+			try (StageProfile.Timer inner = profile.start(StageProfile.Stage.MODEL_LOAD)) {
+				Thread.sleep(20);
+			}
+		}
+		StageProfile.Totals annotation = profile.get(StageProfile.Stage.ANNOTATION);
+		StageProfile.Totals models = profile.get(StageProfile.Stage.MODEL_LOAD);
+		assertEquals(3, annotation.items);
+		assertTrue(models.nanos >= 20000000L);
+		// The nested stage is not counted in the outer one
+		assertTrue(annotation.nanos < models.nanos);
+		try {
+			StageProfile.Timer first = profile.start(StageProfile.Stage.SCORING);
+			profile.start(StageProfile.Stage.OUTPUT);
+			first.close();
+			fail("Stages should be stopped in order");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		
+		StageProfile disabled = StageProfile.DISABLED;
+		disabled.start(StageProfile.Stage.SCORING).close();
+		assertEquals(0, disabled.get(StageProfile.Stage.SCORING).nanos);
+	}
+	
+	@Test
+	public void testMetricsDistribution() {
+		SpiceMetrics.Distribution latency = new SpiceMetrics.Distribution();
+		for (long value = 1; value <= 1000; ++value) {
+			latency.record(value);
+		}
+		assertEquals(1000, latency.count());
+		assertEquals(500.5, latency.mean(), 1e-9);
+		assertEquals(1000, latency.max());
+		// Percentiles are upper bounds within 12.5%
+		long p50 = latency.percentile(0.5);
+		assertTrue(p50 >= 500 && p50 <= 500 * 1.125);
+		long p99 = latency.percentile(0.99);
+		assertTrue(p99 >= 990 && p99 <= 1000);
+		for (long value = 0; value < 100000; value += 7) {
+			assertTrue(SpiceMetrics.Distribution.upperBound(SpiceMetrics.Distribution.index(value)) >= value);
+		}
+		latency.reset();
+		assertEquals(0, latency.count());
+	}
+	
+	@Test
+	public void testCheckpoint() throws Exception {
+		File dir = Files.createTempDirectory("spice-checkpoint").toFile();
+		try {
+			SpiceStats all = new SpiceStats(TupleCategories.defaults(), false);
+			SpiceStats saved = new SpiceStats(TupleCategories.defaults(), false);
+			SpiceArguments args = new SpiceArguments();
+			args.tupleSubsets = true;
+			Map<String, String> options = Checkpoint.options(args, "pcfg", TupleCategories.defaults());
+			Checkpoint checkpoint = Checkpoint.open(dir.getPath(), "input.json", options, false);
+			for (int i = 0; i < 3; ++i) {
+				TupleSet test = i == 1 ? redCat : blueDog;
+				all.add(all.compute((long) i, test, refs, true));
+				saved.add(saved.compute((long) i, test, refs, true));
+				if (i != 1) {
+					checkpoint.save(saved, 2);
+				}
+			}
+			try {
+				Checkpoint.open(dir.getPath(), "input.json", options, false);
+				fail("Existing progress should not be overwritten");
+			} catch (IOException e) {
+				// expected
+			}
+			args.indent = 0;
+			try {
+				Checkpoint.open(dir.getPath(), "input.json", Checkpoint.options(args, "pcfg", TupleCategories.defaults()), true);
+				fail("Progress saved with other options should not be resumed");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("indent 2"));
+			}
+			
+			Checkpoint resumed = Checkpoint.open(dir.getPath(), "input.json", options, true);
+			assertEquals(3, resumed.images());
+			SpiceStats restored = new SpiceStats(TupleCategories.defaults(), false);
+			resumed.restore(restored);
+			assertEquals(all.toString(), restored.toString());
+			StringWriter expected = new StringWriter();
+			JsonStreamWriter writer = new JsonStreamWriter(expected, 2);
+			all.writeJSON(writer);
+			writer.flush();
+			StringWriter results = new StringWriter();
+			resumed.writeResults(results, 2);
+			assertEquals(expected.toString(), results.toString());
+			
+			resumed.delete();
+			assertEquals(0, Checkpoint.open(dir.getPath(), "input.json", options, false).images());
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+	
+	@Test
+	public void testShardMerge() throws Exception {
+		File dir = Files.createTempDirectory("spice-shards").toFile();
+		try {
+			TupleCategories categories = TupleCategories.defaults();
+			SpiceStats all = new SpiceStats(categories, true);
+			List<SpiceStats> shards = Arrays.asList(new SpiceStats(categories, true), new SpiceStats(categories, true));
+			List<String> paths = new ArrayList<String>();
+			List<PartialStats> partials = new ArrayList<PartialStats>();
+			SpiceArguments scored = new SpiceArguments();
+			scored.detailed = true;
+			Map<String, String> options = Checkpoint.options(scored, "pcfg", categories);
+			for (int k = 1; k <= 2; ++k) {
+				paths.add(new File(dir, "part" + k + ".json").getPath());
+				partials.add(new PartialStats(paths.get(k - 1), "input.json", k, 2, true, categories, options));
+			}
+			for (int i = 0; i < 5; ++i) {
+				TupleSet test = i % 3 == 1 ? redCat : blueDog;
+				all.add(all.compute(i == 3 ? "three" : (Object) (long) i, test, refs, true));
+				SpiceStats shard = shards.get(PartialStats.inShard(i, 1, 2) ? 0 : 1);
+				shard.add(shard.compute(i == 3 ? "three" : (Object) (long) i, test, refs, true));
+			}
+			for (int k = 0; k < 2; ++k) {
+				partials.get(k).write(shards.get(k));
+				partials.get(k).close();
+			}
+			
+			SpiceArguments args = new SpiceArguments();
+			args.outputPath = new File(dir, "merged.json").getPath();
+			args.silent = true;
+			args.windowSize = 2;
+			PartialStats.merge(Arrays.asList(paths.get(1), paths.get(0)), args);
+			StringWriter expected = new StringWriter();
+			JsonStreamWriter writer = new JsonStreamWriter(expected, 2);
+			all.writeJSON(writer);
+			writer.flush();
+			assertEquals(expected.toString(), new String(Files.readAllBytes(new File(args.outputPath).toPath()), 
+					StandardCharsets.UTF_8));
+			
+			try {
+				PartialStats.merge(Arrays.asList(paths.get(0)), args);
+				fail("A missing shard should be reported");
+			} catch (IOException e) {
+				// expected
+			}
+			// Shard 2 again, parsed with another parser
+			String lean = new File(dir, "lean2.json").getPath();
+			PartialStats leanPartial = new PartialStats(lean, "input.json", 2, 2, true, categories,
+					Checkpoint.options(scored, "lean", categories));
+			leanPartial.write(shards.get(1));
+			leanPartial.close();
+			try {
+				PartialStats.merge(Arrays.asList(paths.get(0), lean), args);
+				fail("Shards scored with different parsers should not be merged");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("differ in parser (pcfg, lean)"));
+			}
+			try {
+				PartialStats.merge(new ArrayList<String>(), args);
+				fail("Merging nothing should be reported");
+			} catch (IOException e) {
+				assertEquals("No partial files given", e.getMessage());
+			}
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+	
+	@Test
+	public void testParseWorkerMessages() throws Exception {
+		List<String> captions = Arrays.asList("a", "b", "c", "d", "e");
+		List<List<String>> chunks = ParseWorkers.chunks(captions, 2);
+		assertEquals(2, chunks.size());
+		assertEquals(Arrays.asList("a", "b", "c"), chunks.get(0));
+		assertEquals(Arrays.asList("d", "e"), chunks.get(1));
+		assertEquals(5, ParseWorkers.chunks(captions, 8).size());
+		
+		List<ArrayList<ArrayList<String>>> tuples = new ArrayList<ArrayList<ArrayList<String>>>();
+		tuples.add(new ArrayList<ArrayList<String>>(Arrays.asList(new ArrayList<String>(Arrays.asList("dog")),
+				new ArrayList<String>(Arrays.asList("dog", "say", "\"woof\"\nwoof")))));
+		tuples.add(new ArrayList<ArrayList<String>>());
+		tuples.add(new ArrayList<ArrayList<String>>(Arrays.asList(new ArrayList<String>(Arrays.asList("caf\u00e9", "small")))));
+		SpiceMetrics workerMetrics = new SpiceMetrics();
+		workerMetrics.add(SpiceMetrics.Counter.CAPTIONS_ANNOTATED, 3);
+		workerMetrics.record(SpiceMetrics.Histogram.ANNOTATION_BATCH_MICROS, 1500);
+		workerMetrics.record(SpiceMetrics.Histogram.ANNOTATION_BATCH_MICROS, 20);
+		StringWriter line = new StringWriter();
+		ParseWorkers.writeResponse(line, tuples, workerMetrics);
+		assertEquals(line.toString().length() - 1, line.toString().indexOf('\n'));
+		SpiceMetrics metrics = new SpiceMetrics();
+		metrics.add(SpiceMetrics.Counter.CAPTIONS_ANNOTATED, 2);
+		assertEquals(tuples, ParseWorkers.readResponse(line.toString().trim(), new JSONParser(), metrics));
+		// Worker metrics are added to those of the main process
+		assertEquals(5, metrics.count(SpiceMetrics.Counter.CAPTIONS_ANNOTATED));
+		SpiceMetrics.Distribution batches = metrics.distribution(SpiceMetrics.Histogram.ANNOTATION_BATCH_MICROS);
+		assertEquals(2, batches.count());
+		assertEquals(1520, batches.sum());
+		assertEquals(1500, batches.max());
+		assertEquals(workerMetrics.distribution(SpiceMetrics.Histogram.ANNOTATION_BATCH_MICROS).percentile(0.5),
+				batches.percentile(0.5));
+		
+		assertFalse(ParseWorkers.inherited("-Xmx8G"));
+		assertFalse(ParseWorkers.inherited("-agentlib:jdwp=transport=dt_socket,server=y,address=5005"));
+		assertTrue(ParseWorkers.inherited("-Xss4m"));
+		assertTrue(ParseWorkers.inherited("-Djava.io.tmpdir=/scratch"));
+		try {
+			ParseWorkers.readResponse("{\"error\":\"out of memory\"}", new JSONParser(), metrics);
+			fail("A worker error should be reported");
+		} catch (ParseWorkers.WorkerException e) {
+			assertTrue(e.getMessage().contains("out of memory"));
+		}
+	}
+	
+	@Test
+	public void testParseWorkerFailures() throws Exception {
+		assumeTrue(new File("/bin/sh").canExecute());
+		// Stands in for a worker, replying to each chunk of one caption with no tuples
+		List<String> reply = Arrays.asList("/bin/sh", "-c", "while read line; do "
+				+ "echo '{\"tuples\":[[]],\"metrics\":{\"counters\":{},\"histograms\":{}}}'; done");
+		ParseWorkers workers = new ParseWorkers(reply, 3, 60000, 0);
+		try {
+			final Map<String, ArrayList<ArrayList<String>>> parsed = new HashMap<String, ArrayList<ArrayList<String>>>();
+			workers.parse(Arrays.asList("a", "b", "c"), tuples -> parsed.putAll(tuples));
+			assertEquals(3, parsed.size());
+			assertTrue(parsed.get("b").isEmpty());
+		} finally {
+			workers.close();
+		}
+		
+		// Workers that exit are replaced a few times, and then the failure is reported
+		// (one worker, so that no chunk is still being retried when the failure is reported)
+		workers = new ParseWorkers(Arrays.asList("/bin/sh", "-c", "exit 1"), 1, 60000, 0);
+		try {
+			for (int i = 0; i < 2; ++i) {
+				try {
+					workers.parse(Arrays.asList("a", "b", "c"), tuples -> fail("Nothing should be parsed"));
+					fail("Failed workers should be reported");
+				} catch (RuntimeException e) {
+					assertTrue(e.getCause() instanceof IOException);
+				}
+			}
+		} finally {
+			workers.close();
+		}
+		assertEquals(ParseWorkers.MAX_RESTARTS, workers.restarts);
+		
+		// Workers that hang are given up on in the same way
+		workers = new ParseWorkers(Arrays.asList("/bin/sh", "-c", "exec sleep 1000"), 1, 200, 0);
+		try {
+			for (int i = 0; i < 3; ++i) {
+				try {
+					workers.parse(Arrays.asList("a", "b"), tuples -> fail("Nothing should be parsed"));
+					fail("Hung workers should be reported");
+				} catch (RuntimeException e) {
+					assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains(
+							i < 2 ? "did not reply to 2 captions within 200 ms" : "No parse workers are left"));
+				}
+			}
+		} finally {
+			workers.close();
+		}
+		assertEquals(ParseWorkers.MAX_RESTARTS, workers.restarts);
+	}
+	
+	@Test
+	public void testServer() throws Exception {
+		final List<List<String>> parsed = new ArrayList<List<String>>();
+		// Stands in for CoreNLP, failing on one caption
+		SpiceParser parser = new SpiceParser(null, 1, true) {
+			@Override
+			protected Map<String, ArrayList<ArrayList<String>>> loadTuples(List<String> input) {
+				parsed.add(input);
+				Map<String, ArrayList<ArrayList<String>>> tuples = new HashMap<String, ArrayList<ArrayList<String>>>();
+				for (String caption : input) {
+					if (caption.contains("bad")) {
+						throw new RuntimeException("Could not parse " + caption);
+					}
+					ArrayList<ArrayList<String>> captionTuples = new ArrayList<ArrayList<String>>();
+					captionTuples.add(new ArrayList<String>(Arrays.asList("dog")));
+					if (caption.contains("blue")) {
+						captionTuples.add(new ArrayList<String>(Arrays.asList("dog", "blue")));
+					}
+					tuples.put(caption, captionTuples);
+				}
+				return tuples;
+			}
+		};
+		SpiceArguments args = new SpiceArguments();
+		args.numThreads = 1;
+		final SpiceServer server = new SpiceServer(args, parser);
+		ExecutorService clients = Executors.newFixedThreadPool(2);
+		try {
+			assertTrue(server.respond("metrics").contains("\"counters\""));
+			assertTrue(server.respond("not json").startsWith("{\"error\""));
+			
+			// Both requests are queued before the batcher starts, so they are parsed in one batch
+			Future<String> good = clients.submit(() -> server.respond(
+					"[{\"image_id\": 1, \"test\": \"A blue dog.\", \"refs\": [\"A blue dog.\", \"A dog.\"]}]"));
+			Future<String> bad = clients.submit(() -> server.respond(
+					"[{\"image_id\": 2, \"test\": \"A bad dog.\", \"refs\": [\"A dog.\"]}]"));
+			while (server.pending.size() < 2) {
+				Thread.sleep(5);
+			}
+			server.startBatcher();
+			JSONArray results = (JSONArray) new JSONParser().parse(good.get());
+			assertEquals(1, results.size());
+			JSONObject result = (JSONObject) results.get(0);
+			assertEquals(1L, result.get("image_id"));
+			JSONObject all = (JSONObject) ((JSONObject) result.get("scores")).get("All");
+			assertEquals(1.0, ((Number) all.get("pr")).doubleValue(), 1e-9);
+			assertEquals(2L, ((Number) all.get("tp")).longValue());
+			// The failed batch was retried a request at a time, failing only the bad one
+			JSONObject error = (JSONObject) new JSONParser().parse(bad.get());
+			assertTrue(((String) error.get("error")).contains("Could not parse A bad dog."));
+			assertEquals(3, parsed.size());
+		} finally {
+			clients.shutdownNow();
+			server.close();
+		}
+	}
+	
+	/**
+	 * Stands in for CoreNLP, reading "attribute object relation object" captions.
+	 */
+	private static SpiceParser wordParser(int numThreads) {
+		return new SpiceParser(null, numThreads, true) {
+			@Override
+			protected Map<String, ArrayList<ArrayList<String>>> loadTuples(List<String> input) {
+				Map<String, ArrayList<ArrayList<String>>> tuples = new HashMap<String, ArrayList<ArrayList<String>>>();
+				for (String caption : input) {
+					String[] words = caption.split(" ");
+					ArrayList<ArrayList<String>> captionTuples = new ArrayList<ArrayList<String>>();
+					captionTuples.add(new ArrayList<String>(Arrays.asList(words[1])));
+					captionTuples.add(new ArrayList<String>(Arrays.asList(words[3])));
+					captionTuples.add(new ArrayList<String>(Arrays.asList(words[1], words[0])));
+					captionTuples.add(new ArrayList<String>(Arrays.asList(words[1], words[2], words[3])));
+					tuples.put(caption, captionTuples);
+				}
+				return tuples;
+			}
+		};
+	}
+	
+	@Test
+	public void testParallelScoring() throws Exception {
+		String[] attributes = { "red", "blue", "small", "old" };
+		String[] objects = { "dog", "cat", "car", "tree", "man", "puppy" };
+		String[] relations = { "on", "near", "under" };
+		List<String> outputs = new ArrayList<String>();
+		for (int numThreads : new int[] { 1, 4 }) {
+			SpiceParser parser = wordParser(numThreads);
+			ForkJoinPool scoringPool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+			try {
+				SpiceStats stats = new SpiceStats(TupleCategories.defaults(), true);
+				for (int start = 0; start < 120; start += 60) {
+					SpiceScorer.InputWindow window = new SpiceScorer.InputWindow();
+					for (int i = start; i < start + 60; ++i) {
+						JSONObject item = new JSONObject();
+						item.put("image_id", (long) i);
+						item.put("test", String.format("%s %s %s %s", attributes[i % 4], objects[i % 6],
+								relations[i % 3], objects[(i * 5 + 1) % 6]));
+						JSONArray refs = new JSONArray();
+						for (int r = 0; r < 3; ++r) {
+							refs.add(String.format("%s %s %s %s", attributes[(i + r) % 4], objects[(i + r * 2) % 6],
+									relations[(i / 3 + r) % 3], objects[(i * 7 + r) % 6]));
+						}
+						item.put("refs", refs);
+						window.add(item);
+					}
+					window.captionTuples = parser.loadTuples(window.distinctCaptions());
+					SpiceScorer.score(stats, parser, null, window, true, scoringPool);
+				}
+				StringWriter out = new StringWriter();
+				JsonStreamWriter writer = new JsonStreamWriter(out, 2);
+				stats.writeJSON(writer);
+				writer.flush();
+				outputs.add(out.toString() + "\n" + stats.toString());
+			} finally {
+				if (scoringPool != null) {
+					scoringPool.shutdownNow();
+				}
+				parser.close();
+			}
 		}
+		// Scene graphs built and images scored concurrently give exactly the sequential results
+		assertTrue(outputs.get(0).contains("\"image_id\": 119"));
+		assertEquals(outputs.get(0), outputs.get(1));
 	}
 }